@@ -0,0 +1,119 @@
+package code.inverted;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import util.ColumnarPostingList;
+import util.PositionFiles;
+import util.PostingCodec;
+import util.PostingList;
+import util.TermDictionary;
+
+public class CodecBenchmark {
+	/**
+	 * CodecBenchmark: compare the size and the decoding speed of the posting list encodings
+	 * re-encodes an existing inverted index with every codec, with the block, record and no
+	 * compression of SequenceFile (vint + block was the former index output, the index is now
+	 * written by its codec without compression), then reads each copy back several times, decoding the
+	 * positions of every list as a phrase query would
+	 */
+	
+	private static long rewrite(Configuration conf, Path indexDir, List<Path> inputs, Path output, PostingCodec codec, CompressionType compression) throws IOException {
+		/**
+		 * copy every (term, posting list) of the inputs into output with the given encoding, the
+		 * positions the index stores apart are copied into the lists
+		 * Output: size of the written file in bytes
+		 */
+		Text term = new Text();
+		PostingList postings = new PostingList();
+		Path dictPath = new Path(indexDir, TermDictionary.FILE_NAME);
+		TermDictionary dict = dictPath.getFileSystem(conf).exists(dictPath) ? TermDictionary.open(conf, dictPath) : null;
+		try(PositionFiles positions = new PositionFiles(conf);
+				SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(output),
+				SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(PostingList.class),
+				SequenceFile.Writer.compression(compression))) {
+			for(Path input : inputs) {
+				try(SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(input))) {
+					while(reader.next(term, postings)) {
+						TermDictionary.Entry entry = dict == null ? null : dict.get(term.toString());
+						// the positions are decoded with the codec of the index
+						if(entry != null) positions.attach(postings, indexDir, entry);
+						postings.setCodec(codec);
+						writer.append(term, postings);
+					}
+				}
+			}
+		}finally {
+			if(dict != null) dict.close();
+		}
+		return output.getFileSystem(conf).getFileStatus(output).getLen();
+	}
+	
+	private static long decode(Configuration conf, Path file) throws IOException {
+		/**
+		 * read every posting list of the file and decode its positions
+		 * Output: number of postings read, so the work cannot be optimized away
+		 */
+		long count = 0;
+		Text term = new Text();
+		PostingList postings = new PostingList();
+		try(SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file))) {
+			while(reader.next(term, postings)) {
+				ColumnarPostingList columns = postings.columns();
+				int[] positions = columns.getPositions();
+				count += columns.size() + (positions == null ? 0 : positions.length);
+			}
+		}
+		return count;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		/**
+		 * REQUIRED arguments in order:
+		 * 	inverted index directory, working directory
+		 * OPTIONAL arguments:
+		 * 	rounds: number of times each copy is decoded, default 5
+		 */
+		Configuration conf = new Configuration();
+		String[] otherArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+		if(otherArgs.length < 2) {
+			System.err.println("Arguments : [index] [workdir] (rounds)");
+			System.exit(0);
+		}
+		int rounds = otherArgs.length > 2 ? Integer.parseInt(otherArgs[2]) : 5;
+		
+		FileSystem fs = FileSystem.get(conf);
+		List<Path> inputs = new ArrayList<Path>();
+		// partitions are MapFiles, older indexes plain SequenceFiles
+		for(FileStatus status : fs.globStatus(new Path(otherArgs[0], "part-r-*")))
+			inputs.add(status.isDirectory() ? new Path(status.getPath(), MapFile.DATA_FILE_NAME) : status.getPath());
+		Path workDir = new Path(otherArgs[1]);
+		if(fs.exists(workDir)) fs.delete(workDir, true);
+		
+		System.out.println(String.format("%-6s %-6s %12s %10s %12s", "codec", "seqf", "bytes", "ms/round", "postings/s"));
+		for(PostingCodec codec : PostingCodec.values()) {
+			for(CompressionType compression : new CompressionType[]{CompressionType.BLOCK, CompressionType.RECORD, CompressionType.NONE}) {
+				Path output = new Path(workDir, codec + "-" + compression);
+				long bytes = rewrite(conf, new Path(otherArgs[0]), inputs, output, codec, compression);
+				// one warm up round before timing
+				long postings = decode(conf, output);
+				long start = System.nanoTime();
+				for(int i = 0; i < rounds; ++i) decode(conf, output);
+				double ms = (System.nanoTime() - start) / 1e6 / rounds;
+				System.out.println(String.format("%-6s %-6s %12d %10.1f %12.0f", codec, compression, bytes, ms, postings / ms * 1000));
+			}
+		}
+		fs.delete(workDir, true);
+	}
+}
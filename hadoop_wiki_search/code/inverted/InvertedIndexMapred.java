@@ -7,89 +7,100 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.StringTokenizer;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.mapred.lib.InputSampler;
-import org.apache.hadoop.mapred.lib.InputSampler.RandomSampler;
-import org.apache.hadoop.mapred.lib.TotalOrderPartitioner;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.KeyValueTextInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
 import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.ReflectionUtils;
 
 import util.PostingList;
+import util.PostingCodec;
 import util.PostingList.Posting;
+import util.PositionFiles;
+import util.PositionsWritable;
 import util.Stemmer;
+import util.TermDictionary;
+import util.TermDictionary.DictionaryValue;
+import util.TermDocWritable;
+import util.TermPartitioner;
 
 public class InvertedIndexMapred {
 	/**
-	 * InvertedIndexMapred: create inverted index from corpus
+	 * InvertedIndexMapred: create inverted index from corpus in a single MapReduce job
+	 * the map output key is (term, docId), partitioned and grouped by term and sorted by docId,
+	 * so each reduce call sees all the documents of a term in docId order
 	 * Parameters:
-	 * 	SEP: separator of elements in posting list, default as ":"
-	 * 	POS_SEP: separator of positions of a term in a document, default as ","
+	 * 	DEFAULT_POSITION_BUFFER_SIZE: positions a TermFreqMapper buffers before flushing,
+	 * 	can be changed with the "positionBufferSize" configuration
+	 * 	DEFAULT_PARTITION_SIZE: estimated size of an inverted index file, the number of files is
+	 * 	chosen from it, can be changed with the "targetPartitionSize" configuration
+	 * 	MAX_PARTITIONS: upper limit of the number of inverted index files
+	 * 	POSTING_BYTES: estimated size of a posting without its positions, used by the sampler
+	 * 	the integer encoding of the posting lists is chosen with the "postingCodec" configuration,
+	 * 	vint or pfor (default), see PostingCodec
+	 * 	the index directory also gets a TermDictionary locating the posting list of every term
 	 */
-	private static final String SEP = ":";
-	private static final String POS_SEP = ",";
-	public static class TermFreqMapper extends Mapper<IntWritable, Text, Text, IntWritable> {
+	private static final int DEFAULT_POSITION_BUFFER_SIZE = 1 << 20;
+	private static final long DEFAULT_PARTITION_SIZE = 128L << 20;
+	private static final int MAX_PARTITIONS = 1000;
+	private static final int POSTING_BYTES = 6;
+	
+	public static class PageTokenizer {
 		/**
-		 * TermFreqMapper: take corpus as input and generate key: (term, docId), value: position
+		 * PageTokenizer: split a page into stemmed terms, shared by the mapper and the partition sampler
 		 * Parameters:
 		 * 	stopWords: stop words to exclude
 		 * 	stmr: Porter stemmer from external library
 		 * 	DELIM: delimiter for tokenizer, default as almost all punctuation and white spaces
+		 * 	term, position: current term and its position in the page
 		 */
-		
-		private List<String> stopWords = new ArrayList<String>();
-		private Stemmer stmr = new Stemmer();
-		
 		private static final String DELIM = " \t\r\n,.:;'\"()[]{}/<>!?|-—#$&=_*+";
-		private Text wordAndDoc = new Text();
-		private IntWritable docPos = new IntWritable();
 		
-		public void map(IntWritable key, Text page, Context context) throws IOException, InterruptedException {
-			/**
-			 * Input:
-			 * 	key: document id
-			 * 	page: page content
-			 * 
-			 * Emit((term, docId), position)
-			 */
-			StringTokenizer itr = new StringTokenizer(page.toString(), DELIM, false);
-			String docId = "" + key.get();
-			int pos = 0;  // position counter
-			while(itr.hasMoreTokens()) {
-				String word = itr.nextToken().toLowerCase();
-				++pos;
-				// ignore all pure digits, stop words and non-alphanumeric words
-				if(!word.matches("[a-z0-9]+") || word.matches("\\d+") || stopWords.contains(word)) continue;
-				// stem the term for better match
-				stmr.add(word.toCharArray(), word.length());
-				stmr.stem();
-				word = stmr.toString();
-				wordAndDoc.set(word.concat(SEP).concat(docId));
-				docPos.set(pos);
-				context.write(wordAndDoc, docPos);
-			}
-		}
+		private Set<String> stopWords = new HashSet<String>();
+		private Stemmer stmr = new Stemmer();
+		private StringTokenizer itr;
+		private String term;
+		private int position;
 		
-		public void setup(Context context) throws IOException, InterruptedException {
+		public PageTokenizer(Configuration conf) throws IOException {
 			/**
-			 * read stop words file and store all the stop words into a list
+			 * read stop words file and store all the stop words into a set
 			 * no stop words if the file cannot be found.
 			 */
-			Configuration conf = context.getConfiguration();
 			String dir = conf.get("stopWordsPath");
 			Path path = new Path(dir.concat(File.separator).concat("part-r-00000"));
 			
@@ -101,115 +112,153 @@ public class InvertedIndexMapred {
 				}
 			}catch(FileNotFoundException e) {}
 		}
-	}
-	
-	public static class TermFreqReducer extends Reducer<Text, IntWritable, Text, Text> {
-		/**
-		 * TermFreqReducer: combine all the positions together and count the occurrence of a word 
-		 * in a document.
-		 * Output: key: (term, docId), value: count(SEP)positions
-		 */
 		
-		private Text wordAndDoc = new Text();
-		private Text countAndPos = new Text();
+		public void reset(String page) {
+			itr = new StringTokenizer(page, DELIM, false);
+			position = 0;
+		}
 		
-		public void reduce(Text key, Iterable<IntWritable> positions, Context context) throws IOException, InterruptedException {
+		public boolean next() {
 			/**
-			 * Input:
-			 * 	key: (term, docId)
-			 * 	positions: list of document positions of a term
-			 * 
-			 * Emit ((term, docId), count(SEP)positions)
+			 * move to the next indexable term, positions count every token including skipped ones
 			 */
-			int count = 0;
-			StringBuffer posting = new StringBuffer();
-			List<Integer> pos = new ArrayList<Integer>();
-			// store the positions in a list and count the occurrence of the word.
-			for(IntWritable position : positions) {
-				++count;
-				pos.add(position.get());
-			}
-			// sort the positions in ascending order
-			Collections.sort(pos);
-			// compress the positions list using relative positions
-			int prev = 0;
-			for(int p : pos) {
-				int offset = p - prev;
-				posting.append(posting.length() == 0 ? offset : POS_SEP + offset);
-				prev = p;
+			while(itr.hasMoreTokens()) {
+				String word = itr.nextToken().toLowerCase();
+				++position;
+				// ignore all pure digits, stop words and non-alphanumeric words
+				if(!word.matches("[a-z0-9]+") || word.matches("\\d+") || stopWords.contains(word)) continue;
+				// stem the term for better match
+				stmr.add(word.toCharArray(), word.length());
+				stmr.stem();
+				term = stmr.toString();
+				return true;
 			}
-			wordAndDoc.set(key);
-			countAndPos.set(String.valueOf(count).concat(SEP).concat(posting.toString()));
-			context.write(wordAndDoc, countAndPos);
+			return false;
+		}
+		
+		public String term() {
+			return term;
+		}
+		
+		public int position() {
+			return position;
 		}
 	}
 	
-	public static class InvertedIndexMapper extends Mapper<Text, Text, Text, Text> {
+	public static class TermFreqMapper extends Mapper<IntWritable, Text, TermDocWritable, PositionsWritable> {
 		/**
-		 * InvertedIndexMapred: ((term, docId), count(SEP)positions) and turn it into
-		 * (docId, term(SEP)count(SEP)positions) for later calculate inverted document frequency
+		 * TermFreqMapper: take corpus as input and generate key: (term, docId), value: positions
+		 * positions of a term are aggregated within the page, so one record is emitted per (term, docId)
+		 * Parameters:
+		 * 	tokenizer: turns the page into stemmed terms
+		 * 	buffer: positions of each term of the current page
+		 * 	bufferSize: number of positions buffered, the buffer is flushed when it reaches maxBufferSize
 		 */
 		
-		private Text word = new Text();
-		private Text posting = new Text();
+		private PageTokenizer tokenizer;
+		private TermDocWritable wordAndDoc = new TermDocWritable();
+		private Map<String, PositionsWritable> buffer = new HashMap<String, PositionsWritable>();
+		private int bufferSize = 0;
+		private int maxBufferSize;
 		
-		public void map(Text key, Text value, Context context) throws IOException, InterruptedException {
+		public void map(IntWritable key, Text page, Context context) throws IOException, InterruptedException {
 			/**
 			 * Input:
-			 * 	key: (term, docId) pair
-			 * 	value: count(SEP)positions
-			 * 
-			 * Output: (docId, term(SEP)count(SEP)positions)
+			 * 	key: document id
+			 * 	page: page content
+			 *
+			 * Emit((term, docId), positions)
+			 */
+			int docId = key.get();
+			tokenizer.reset(page.toString());
+			while(tokenizer.next()) {
+				String word = tokenizer.term();
+				PositionsWritable positions = buffer.get(word);
+				if(positions == null) {
+					positions = new PositionsWritable();
+					buffer.put(word, positions);
+				}
+				positions.add(tokenizer.position());
+				// flush early on very long pages to bound memory, the reducer merges the pieces
+				if(++bufferSize >= maxBufferSize) flush(docId, context);
+			}
+			flush(docId, context);
+		}
+		
+		private void flush(int docId, Context context) throws IOException, InterruptedException {
+			/**
+			 * emit the buffered positions of every term and clear the buffer
+			 * positions are added in increasing order, so each list is already sorted
 			 */
-			String[] wordAndDoc = key.toString().split(SEP);
-			word.set(wordAndDoc[0]);
-			posting.set(wordAndDoc[1].concat(SEP).concat(value.toString()));
-			context.write(word, posting);
+			for(Map.Entry<String, PositionsWritable> entry : buffer.entrySet()) {
+				wordAndDoc.set(entry.getKey(), docId);
+				context.write(wordAndDoc, entry.getValue());
+			}
+			buffer.clear();
+			bufferSize = 0;
+		}
+		
+		public void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+			maxBufferSize = conf.getInt("positionBufferSize", DEFAULT_POSITION_BUFFER_SIZE);
+			tokenizer = new PageTokenizer(conf);
 		}
 	}
 	
-	public static class InvertedIndexReducer extends Reducer<Text, Text, Text, Text> {
+	public static class InvertedIndexReducer extends Reducer<TermDocWritable, PositionsWritable, Text, PostingList> {
 		/**
 		 * InvertedIndexReducer: calculate tf-idf score of each term in a document
 		 * tf-idf score = (1 + log(term frequency)) * log(docNum/document frequency)
 		 * Parameters:
 		 * 	docNum: total document number
-		 * 
+		 *
 		 * Output: (term, list of (docId, score, position))
 		 */
 		
 		private int docNum;
+		private PostingCodec codec;
 		private Text word = new Text();
 		private PostingList postings = new PostingList();
-		private Text val = new Text();
+		private List<PositionsWritable> docPositions = new ArrayList<PositionsWritable>();
 		
-		public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+		public void reduce(TermDocWritable key, Iterable<PositionsWritable> values, Context context) throws IOException, InterruptedException {
 			/**
 			 * Input:
-			 * 	key: document id
-			 * 	values: list of (term, count, positions)
-			 * 
+			 * 	key: (term, docId), the docId changes while iterating the values
+			 * 	values: positions of the term in each document, in docId order
+			 *
 			 * Output: (term, list of (docId, score, position))
 			 */
-			int dcount = 0;
-			List<String> listStr = new ArrayList<String>();
-			// calculate document frequency
-			for(Text value : values) {
-				String str = value.toString();
-				++dcount;
-				listStr.add(str);
+			word.set(key.getTerm());
+			// collect the positions of each document, pieces of the same document are adjacent
+			for(PositionsWritable value : values) {
+				int docId = key.getDocId();
+				int last = postings.size() - 1;
+				if(last >= 0 && postings.get(last).getDocId() == docId) {
+					docPositions.get(last).addAll(value);
+					docPositions.get(last).sort();
+				}else {
+					postings.addPosting(new Posting(docId, 0));
+					docPositions.add(new PositionsWritable(value));
+				}
 			}
-			word.set(key);
-			// Initialize a posting list and sort the postings by the order of document id
-			for(String posting : listStr) {
-				String[] strs = posting.split(SEP);
-				double score = calcTFIDF(Integer.valueOf(strs[1]), dcount);
-				postings.addPosting(new Posting(strs[0], score, strs[2]));
+			// the document frequency is known once the term is read, fill in the scores
+			int dcount = postings.size();
+			for(int i = 0; i < dcount; ++i) {
+				PositionsWritable positions = docPositions.get(i);
+				Posting p = new Posting(postings.get(i).getDocId(), calcTFIDF(positions.size(), dcount));
+				// compress the positions list using relative positions
+				int prev = 0;
+				for(int j = 0; j < positions.size(); ++j) {
+					p.getPositions().add(positions.get(j) - prev);
+					prev = positions.get(j);
+				}
+				postings.getPosting().set(i, p);
 			}
-			postings.sortPosting();
-			val.set(postings.toString());
-			context.write(word, val);
+			postings.setCodec(codec);
+			context.write(word, postings);
 			postings.clear();
+			docPositions.clear();
 		}
 		
 		private double calcTFIDF(int tf, int df) {
@@ -225,6 +274,7 @@ public class InvertedIndexMapred {
 			 * read total number of documents into memory
 			 */
 			Configuration conf = context.getConfiguration();
+			codec = PostingCodec.valueOf(conf.get("postingCodec", "pfor").toUpperCase());
 			String dir = conf.get("docNum");
 			Path path = new Path(dir.concat(File.separator).concat("part-r-00000"));
 			
@@ -237,6 +287,194 @@ public class InvertedIndexMapred {
 		}
 	}
 	
+	public static class IndexOutputFormat extends FileOutputFormat<Text, PostingList> {
+		/**
+		 * IndexOutputFormat: write the posting lists of each partition as a MapFile, a data
+		 * SequenceFile and an index file holding the offset of every "io.map.index.interval"th
+		 * term (128 by default), readable by MapFile.Reader, and the dictionary entry of every
+		 * term into a hidden _dict-r-* file next to it
+		 * the positions of the lists are written apart, to the positions file of the MapFile
+		 * directory, at the offset of the dictionary entry, so that reading a list does not read
+		 * them and a query only reads the ones it scores the proximity with (see PositionFiles)
+		 * the offset of a term is the position of its record in the data file, so the file
+		 * may not be block compressed, the job writes it uncompressed: the lists are already
+		 * packed by their codec (PFOR by default) and a lookup then reads its list without inflating
+		 * it, the zlib inflate dominated the decoding time in CodecBenchmark
+		 */
+		public RecordWriter<Text, PostingList> getRecordWriter(TaskAttemptContext context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+			CompressionType type = CompressionType.NONE;
+			CompressionCodec codec = null;
+			if(getCompressOutput(context)) {
+				type = SequenceFileOutputFormat.getOutputCompressionType(context);
+				if(type == CompressionType.BLOCK)
+					throw new IOException("block compressed index files cannot be addressed by offset");
+				codec = ReflectionUtils.newInstance(getOutputCompressorClass(context, DefaultCodec.class), conf);
+			}
+			Path dir = getDefaultWorkFile(context, "");
+			Path dictFile = new Path(dir.getParent(), getUniqueFile(context, "_dict", ""));
+			final int partition = context.getTaskAttemptID().getTaskID().getId();
+			final int indexInterval = conf.getInt("io.map.index.interval", 128);
+			dir.getFileSystem(conf).mkdirs(dir);
+			final SequenceFile.Writer out = SequenceFile.createWriter(conf, SequenceFile.Writer.file(new Path(dir, MapFile.DATA_FILE_NAME)),
+					SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(PostingList.class),
+					SequenceFile.Writer.compression(type, codec));
+			final SequenceFile.Writer indexOut = SequenceFile.createWriter(conf, SequenceFile.Writer.file(new Path(dir, MapFile.INDEX_FILE_NAME)),
+					SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(LongWritable.class),
+					SequenceFile.Writer.compression(CompressionType.BLOCK));
+			final SequenceFile.Writer dictOut = SequenceFile.createWriter(conf, SequenceFile.Writer.file(dictFile),
+					SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(DictionaryValue.class));
+			final FSDataOutputStream positionsOut = dir.getFileSystem(conf).create(new Path(dir, PositionFiles.FILE_NAME));
+			
+			return new RecordWriter<Text, PostingList>() {
+				private DictionaryValue entry = new DictionaryValue();
+				private LongWritable position = new LongWritable();
+				private long size = 0;
+				
+				public void write(Text term, PostingList postings) throws IOException {
+					entry.offset = out.getLength();
+					// same index entries as MapFile.Writer
+					if(size++ % indexInterval == 0) {
+						position.set(entry.offset);
+						indexOut.append(term, position);
+					}
+					entry.positionsOffset = positionsOut.getPos();
+					postings.writePositions(positionsOut);
+					postings.setPositionsApart(true);
+					out.append(term, postings);
+					entry.df = postings.size();
+					entry.maxScore = postings.columns().getMaxScore();
+					entry.partition = partition;
+					dictOut.append(term, entry);
+				}
+				
+				public void close(TaskAttemptContext context) throws IOException {
+					out.close();
+					indexOut.close();
+					dictOut.close();
+					positionsOut.close();
+				}
+			};
+		}
+	}
+	
+	private static void writeTermDictionary(Configuration conf, Path outPath) throws IOException {
+		/**
+		 * merge the dictionary entries of all partitions, the partitions are sorted by term so
+		 * their entries only need to be concatenated in partition order
+		 */
+		FileSystem fs = outPath.getFileSystem(conf);
+		List<Path> parts = new ArrayList<Path>();
+		for(FileStatus status : fs.globStatus(new Path(outPath, "_dict-r-*"))) parts.add(status.getPath());
+		Collections.sort(parts);
+		TermDictionary.build(conf, outPath, parts);
+		for(Path part : parts) fs.delete(part, false);
+	}
+	
+	private static class TermSample {
+		/**
+		 * TermSample: a sampled (term, docId) pair and the estimated size of its posting in bytes
+		 */
+		String term;
+		int bytes;
+		
+		TermSample(String term, int bytes) {
+			this.term = term;
+			this.bytes = bytes;
+		}
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int writePartitionFile(Job job, Path partitionPath, double freq, int numSamples, int maxSplits) throws Exception {
+		/**
+		 * sample terms from the corpus and write the boundary terms for TermPartitioner
+		 * (term, docId) pairs are sampled uniformly and weighted by the estimated size of their
+		 * posting, POSTING_BYTES plus one byte per position, so partitions are balanced by index
+		 * bytes rather than by number of postings, and the number of partitions is the estimated
+		 * index size divided by the "targetPartitionSize" configuration, the estimate is recorded as
+		 * "estimatedIndexBytes" in the configuration of the job
+		 * Input:
+		 * 	freq: probability with which a document is sampled
+		 * 	numSamples: maximum number of sampled terms
+		 * 	maxSplits: maximum number of input splits to read
+		 *
+		 * Output: number of partitions, one more than the number of boundaries written
+		 */
+		Configuration conf = job.getConfiguration();
+		InputFormat inf = ReflectionUtils.newInstance(job.getInputFormatClass(), conf);
+		List<InputSplit> splits = inf.getSplits(job);
+		PageTokenizer tokenizer = new PageTokenizer(conf);
+		List<TermSample> samples = new ArrayList<TermSample>();
+		Map<String, Integer> pageTerms = new HashMap<String, Integer>();
+		Random r = new Random();
+		int splitStep = Math.max(1, splits.size() / maxSplits);
+		int splitsRead = 0;
+		long seen = 0, seenBytes = 0;
+		for(int i = 0; i < splits.size(); i += splitStep) {
+			++splitsRead;
+			TaskAttemptContext samplingContext = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+			try(RecordReader<IntWritable, Text> reader = inf.createRecordReader(splits.get(i), samplingContext)) {
+				reader.initialize(splits.get(i), samplingContext);
+				while(reader.nextKeyValue()) {
+					if(r.nextDouble() > freq) continue;
+					pageTerms.clear();
+					tokenizer.reset(reader.getCurrentValue().toString());
+					while(tokenizer.next()) {
+						Integer tf = pageTerms.get(tokenizer.term());
+						pageTerms.put(tokenizer.term(), tf == null ? 1 : tf + 1);
+					}
+					// reservoir sampling over all (term, docId) pairs seen
+					for(Map.Entry<String, Integer> entry : pageTerms.entrySet()) {
+						TermSample sample = new TermSample(entry.getKey(), POSTING_BYTES + entry.getValue());
+						++seen;
+						seenBytes += sample.bytes;
+						if(samples.size() < numSamples) samples.add(sample);
+						else if(r.nextDouble() < (double)numSamples / seen) samples.set(r.nextInt(numSamples), sample);
+					}
+				}
+			}
+		}
+		Collections.sort(samples, new Comparator<TermSample>() {
+			public int compare(TermSample s1, TermSample s2) {
+				return s1.term.compareTo(s2.term);
+			}
+		});
+		
+		// scale the sampled bytes up to the whole corpus to choose the number of partitions
+		long targetSize = conf.getLong("targetPartitionSize", DEFAULT_PARTITION_SIZE);
+		double indexBytes = seenBytes / freq * splits.size() / Math.max(1, splitsRead);
+		int numPartitions = (int) Math.max(1, Math.min(MAX_PARTITIONS, Math.ceil(indexBytes / targetSize)));
+		// kept in the job configuration, next to the partition file it was used for
+		conf.setLong("estimatedIndexBytes", (long) indexBytes);
+		
+		// cut the sorted samples into pieces of equal weight
+		long sampleBytes = 0;
+		for(TermSample sample : samples) sampleBytes += sample.bytes;
+		FileSystem fs = partitionPath.getFileSystem(conf);
+		if(fs.exists(partitionPath)) fs.delete(partitionPath, false);
+		int boundaries = 0, threshold = 1;
+		try(SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(partitionPath),
+				SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(NullWritable.class))) {
+			long cumulated = 0;
+			String last = null;
+			for(TermSample sample : samples) {
+				// a boundary starts the next partition once the next threshold of equal weight is reached
+				if(threshold < numPartitions && !sample.term.equals(last)
+						&& cumulated >= (double)sampleBytes * threshold / numPartitions) {
+					writer.append(new Text(sample.term), NullWritable.get());
+					++boundaries;
+					// a term heavier than a partition gets one alone and passes several thresholds,
+					// they all end at this boundary instead of leaving a run of near-empty partitions
+					while(threshold < numPartitions && cumulated >= (double)sampleBytes * threshold / numPartitions) ++threshold;
+				}
+				cumulated += sample.bytes;
+				last = sample.term;
+			}
+		}
+		// fewer partitions than estimated when heavy terms took several thresholds
+		return boundaries + 1;
+	}
+	
 	public static void main(String[] args) throws Exception{
 		/**
 		 * entrance of inverted index creation
@@ -253,60 +491,43 @@ public class InvertedIndexMapred {
 		conf.set("stopWordsPath", otherArgs[0]);
 		conf.set("docNum", otherArgs[1]);
 		
-		// remove temp and output directory if they already exist
-		Path tfTemp = new Path("tf_temp");
+		// remove output directory if it already exists
 		Path outPath = new Path(otherArgs[3]);
 		Path partitionPath = new Path(otherArgs[4]);
 		FileSystem fs = FileSystem.get(conf);
-		if(fs.exists(tfTemp)) fs.delete(tfTemp, true);
 		if(fs.exists(outPath)) fs.delete(outPath, true);
 		if(fs.exists(partitionPath)) fs.delete(partitionPath, false);
 		
-		// Start the first MapReduce job to calculate word count;
-		Job tfJob = Job.getInstance(conf, "count term frequncy");
-		
-		tfJob.setJarByClass(InvertedIndexMapred.class);
-		tfJob.setMapperClass(TermFreqMapper.class);
-		tfJob.setReducerClass(TermFreqReducer.class);
-		tfJob.setNumReduceTasks(3);
-		
-		tfJob.setInputFormatClass(SequenceFileInputFormat.class);
-		tfJob.setMapOutputValueClass(IntWritable.class);
-		tfJob.setOutputKeyClass(Text.class);
-		tfJob.setOutputValueClass(Text.class);
-		
-		FileInputFormat.addInputPath(tfJob, new Path(otherArgs[2]));
-		FileOutputFormat.setOutputPath(tfJob, tfTemp);
-		tfJob.waitForCompletion(true);
-		
-		// Start the second MapReduce job to create inverted index
+		// A single MapReduce job reads the corpus and writes the inverted index
 		Job iiJob = Job.getInstance(conf, "create inverted index");
 		
 		iiJob.setJarByClass(InvertedIndexMapred.class);
-		iiJob.setMapperClass(InvertedIndexMapper.class);
+		iiJob.setMapperClass(TermFreqMapper.class);
 		iiJob.setReducerClass(InvertedIndexReducer.class);
-		iiJob.setNumReduceTasks(10); // we partition our output into 10 files
 		
-		iiJob.setInputFormatClass(KeyValueTextInputFormat.class);
-		iiJob.setMapOutputValueClass(Text.class);
+		iiJob.setInputFormatClass(SequenceFileInputFormat.class);
+		iiJob.setMapOutputKeyClass(TermDocWritable.class);
+		iiJob.setMapOutputValueClass(PositionsWritable.class);
 		iiJob.setOutputKeyClass(Text.class);
-		iiJob.setOutputValueClass(Text.class);
+		iiJob.setOutputValueClass(PostingList.class);
 		
-		// use a sample to estimate the distribution of terms and partition the output
-		RandomSampler<Text, Text> sampler = new InputSampler.RandomSampler<Text, Text>(0.1, 200, 30);
-		TotalOrderPartitioner.setPartitionFile(iiJob.getConfiguration(), partitionPath);
-		iiJob.setPartitionerClass(TotalOrderPartitioner.class);
+		// sort by (term, docId) on the raw bytes but group and partition by term only
+		iiJob.setSortComparatorClass(TermDocWritable.Comparator.class);
+		iiJob.setGroupingComparatorClass(TermDocWritable.TermComparator.class);
+		iiJob.setPartitionerClass(TermPartitioner.class);
+		TermPartitioner.setPartitionFile(iiJob.getConfiguration(), partitionPath);
 		
-		// compress the inverted index file to improve performance
-		iiJob.setOutputFormatClass(SequenceFileOutputFormat.class);
-		SequenceFileOutputFormat.setOutputCompressionType(iiJob, CompressionType.BLOCK);
-		SequenceFileOutputFormat.setCompressOutput(iiJob, true);
-		FileInputFormat.addInputPath(iiJob, tfTemp);
+		// the posting lists are compressed by their codec, the records are left uncompressed so
+		// the term dictionary can point into the files and a lookup inflates nothing (see CodecBenchmark)
+		iiJob.setOutputFormatClass(IndexOutputFormat.class);
+		FileOutputFormat.setCompressOutput(iiJob, false);
+		FileInputFormat.addInputPath(iiJob, new Path(otherArgs[2]));
 		FileOutputFormat.setOutputPath(iiJob, outPath);
-		InputSampler.writePartitionFile(iiJob, sampler);
-		iiJob.waitForCompletion(true);
 		
-		fs.delete(tfTemp, true);
+		// use a sample to estimate the size of the index and partition it into balanced files
+		iiJob.setNumReduceTasks(writePartitionFile(iiJob, partitionPath, 0.1, 10000, 30));
+		if(iiJob.waitForCompletion(true)) writeTermDictionary(conf, outPath);
+		
 		fs.close();
 		
 	}
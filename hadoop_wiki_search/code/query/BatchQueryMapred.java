@@ -0,0 +1,267 @@
+package code.query;
+
+import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import util.ColumnarPostingList;
+import util.CorpusFetcher;
+import util.PositionFiles;
+import util.PostingList;
+import util.QueryParser;
+import util.QueryParser.Query;
+import util.SubExpressionCache;
+import util.TermDictionary;
+
+public class BatchQueryMapred {
+	/**
+	 * BatchQueryMapred: evaluate a file of queries, one per line, in a single MapReduce job
+	 * the index partitions holding the terms of any query are scanned once, each posting list is
+	 * sent to every query using its term, and each reduce call evaluates one query
+	 * the output is a MapFile of (query, search result string) per reducer, once the job succeeds
+	 * the results are appended to the query cache of CorpusFetcher (see QueryCache.load) for the
+	 * same index, so later queries of the batch are answered without a job
+	 * parameters:
+	 * 	indexFile: default inverted index folder
+	 */
+	private static String indexFile = "inverted";
+	
+	public static class TermPostings implements Writable {
+		/**
+		 * TermPostings: the posting list of a term, an empty term marks a query without postings
+		 */
+		private Text term = new Text();
+		private PostingList postings = new PostingList();
+		
+		public void set(Text term, PostingList postings) {
+			this.term.set(term);
+			this.postings = postings;
+		}
+		
+		public void readFields(DataInput in) throws IOException {
+			term.readFields(in);
+			postings.readFields(in);
+		}
+		
+		public void write(DataOutput out) throws IOException {
+			term.write(out);
+			postings.write(out);
+		}
+	}
+	
+	public static class QueryLineMapper extends Mapper<LongWritable, Text, Text, TermPostings> {
+		/**
+		 * QueryLineMapper: emit every query once, so that queries without any indexed term are
+		 * also evaluated
+		 */
+		private Text query = new Text();
+		private TermPostings marker = new TermPostings();
+		
+		public void map(LongWritable key, Text line, Context context) throws IOException, InterruptedException {
+			String q = line.toString().trim().toLowerCase();
+			if(q.isEmpty()) return;
+			query.set(q);
+			context.write(query, marker);
+		}
+	}
+	
+	public static class PostingMapper extends Mapper<Text, PostingList, Text, TermPostings> {
+		/**
+		 * PostingMapper: send the posting list of a term to every query of the batch using it
+		 * the positions the index stores apart are found with its dictionary and read from the
+		 * positions file when the list is sent
+		 * parameters:
+		 * 	queries: queries of each term
+		 * 	indexDir, dict, positions: the index, its dictionary and positions files, null
+		 * 	without a dictionary, the lists then hold their positions
+		 */
+		private Map<String, List<Text>> queries = new HashMap<String, List<Text>>();
+		private TermPostings value = new TermPostings();
+		private Path indexDir;
+		private TermDictionary dict;
+		private PositionFiles positions;
+		
+		public void map(Text key, PostingList postings, Context context) throws IOException, InterruptedException {
+			List<Text> users = queries.get(key.toString());
+			if(users == null) return;
+			TermDictionary.Entry entry = dict == null ? null : dict.get(key.toString());
+			if(entry != null) positions.attach(postings, indexDir, entry);
+			value.set(key, postings);
+			for(Text query : users) context.write(query, value);
+		}
+		
+		public void setup(Context context) throws IOException, InterruptedException {
+			for(String query : readQueries(context.getConfiguration())) {
+				Text q = new Text(query);
+				for(String term : new LinkedHashSet<String>(QueryMapred.queryTerms(query))) {
+					List<Text> users = queries.get(term);
+					if(users == null) {
+						users = new ArrayList<Text>();
+						queries.put(term, users);
+					}
+					users.add(q);
+				}
+			}
+			Configuration conf = context.getConfiguration();
+			indexDir = new Path(conf.get("batchIndex", indexFile));
+			Path dictPath = new Path(indexDir, TermDictionary.FILE_NAME);
+			if(dictPath.getFileSystem(conf).exists(dictPath)) {
+				dict = TermDictionary.open(conf, dictPath);
+				positions = new PositionFiles(conf);
+			}
+		}
+		
+		public void cleanup(Context context) throws IOException, InterruptedException {
+			if(dict != null) {
+				dict.close();
+				positions.close();
+			}
+		}
+	}
+	
+	public static class BatchQueryReducer extends Reducer<Text, TermPostings, Text, Text> {
+		/**
+		 * BatchQueryReducer: evaluate a query on the posting lists of its terms
+		 * the clauses shared by the queries of a reducer are evaluated once through a
+		 * SubExpressionCache
+		 */
+		private QueryParser parser = new QueryParser();
+		private Text result = new Text();
+		private SubExpressionCache cache;
+		
+		public void reduce(Text query, Iterable<TermPostings> values, Context context) throws IOException, InterruptedException {
+			Map<String, ColumnarPostingList> terms = new HashMap<String, ColumnarPostingList>();
+			// the value object is reused by the framework, but every value is read into new columns
+			for(TermPostings value : values)
+				if(value.term.getLength() > 0) terms.put(value.term.toString(), value.postings.columns());
+			Query q = parser.parseQuery(query.toString());
+			result.set(QueryMapred.evaluate(q, terms, 0, cache).toString());
+			context.write(query, result);
+		}
+		
+		public void setup(Context context) throws IOException, InterruptedException {
+			QueryMapred.loadStopWords(context.getConfiguration());
+			cache = new SubExpressionCache(context.getConfiguration());
+		}
+	}
+	
+	private static List<String> readQueries(Configuration conf) throws IOException {
+		/**
+		 * read the lower case queries of the batch file
+		 */
+		List<String> queries = new ArrayList<String>();
+		Path path = new Path(conf.get("batchQueries"));
+		try(FileSystem fs = FileSystem.newInstance(conf);
+				BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path)))) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				line = line.trim().toLowerCase();
+				if(!line.isEmpty()) queries.add(line);
+			}
+		}
+		return queries;
+	}
+	
+	private static Set<Path> indexInputs(Configuration conf, Path indexDir) throws IOException {
+		/**
+		 * with a term dictionary only the partitions holding a term of the batch are scanned,
+		 * otherwise the whole index
+		 */
+		Set<Path> inputs = new LinkedHashSet<Path>();
+		Path dictPath = new Path(indexDir, TermDictionary.FILE_NAME);
+		if(!dictPath.getFileSystem(conf).exists(dictPath)) {
+			inputs.add(indexDir);
+			return inputs;
+		}
+		try(TermDictionary dict = TermDictionary.open(conf, dictPath)) {
+			for(String query : readQueries(conf))
+				for(String term : QueryMapred.queryTerms(query)) {
+					TermDictionary.Entry entry = dict.get(term);
+					if(entry != null) inputs.add(entry.getFile(indexDir));
+				}
+		}
+		return inputs;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		/**
+		 * entrance of batch query
+		 * REQUIRED arguments in order:
+		 * 	query file, output folder
+		 * OPTIONAL arguments:
+		 * 	use -i to specify inverted index folder which contains "inverted" directory
+		 * 	use -r to specify the number of reducers, default 1
+		 * 	use -c false to keep the results out of the query cache
+		 */
+		Configuration conf = new Configuration();
+		conf.set("mapreduce.job.queuename", "hadoop02");
+		String[] otherArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+		if(otherArgs.length < 2) {
+			System.err.println("Usage: [queries] [output] (-i indexFolder) (-r reducers) (-c true/false)");
+			System.exit(0);
+		}
+		String indexFile = BatchQueryMapred.indexFile;
+		int reducers = 1;
+		boolean toCache = true;
+		for(int i = 2; i + 1 < otherArgs.length; i += 2) {
+			if(otherArgs[i].equals("-i")) indexFile = otherArgs[i + 1].concat(File.separator).concat(indexFile);
+			else if(otherArgs[i].equals("-r")) reducers = Integer.valueOf(otherArgs[i + 1]);
+			else if(otherArgs[i].equals("-c")) toCache = Boolean.valueOf(otherArgs[i + 1]);
+		}
+		conf.set("batchQueries", otherArgs[0]);
+		conf.set("batchIndex", indexFile);
+		
+		Path outPath = new Path(otherArgs[1]);
+		FileSystem fs = FileSystem.get(conf);
+		if(fs.exists(outPath)) fs.delete(outPath, true);
+		
+		Job job = Job.getInstance(conf, "batch query");
+		job.setJarByClass(BatchQueryMapred.class);
+		job.setReducerClass(BatchQueryReducer.class);
+		job.setNumReduceTasks(reducers);
+		job.setMapOutputKeyClass(Text.class);
+		job.setMapOutputValueClass(TermPostings.class);
+		job.setOutputKeyClass(Text.class);
+		job.setOutputValueClass(Text.class);
+		
+		MultipleInputs.addInputPath(job, new Path(otherArgs[0]), TextInputFormat.class, QueryLineMapper.class);
+		for(Path input : indexInputs(conf, new Path(indexFile)))
+			MultipleInputs.addInputPath(job, input, SequenceFileInputFormat.class, PostingMapper.class);
+		job.setOutputFormatClass(MapFileOutputFormat.class);
+		FileOutputFormat.setOutputPath(job, outPath);
+		if(!job.waitForCompletion(true)) System.exit(1);
+		if(!toCache) return;
+		
+		// the cache key drops the stop words
+		QueryMapred.loadStopWords(conf);
+		try(CorpusFetcher fetcher = new CorpusFetcher(conf, new Path(indexFile))) {
+			int count = fetcher.getCache().load(outPath);
+			System.out.println(count + " results written to the query cache " + CorpusFetcher.cacheDir);
+		}
+	}
+}
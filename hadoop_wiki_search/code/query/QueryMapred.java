@@ -8,27 +8,31 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
-import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
 
+import util.ColumnarPostingList;
 import util.CorpusFetcher;
 import util.PostingList;
 import util.QueryParser;
 import util.QueryParser.Query;
 import util.SearchResult;
 import util.Stemmer;
+import util.SubExpressionCache;
+import util.TermLookupInputFormat;
+import util.TopKEvaluator;
 
 public class QueryMapred {
 	/**
@@ -41,61 +45,45 @@ public class QueryMapred {
 	private static String indexFile = "inverted";
 	private static String queryOutput = "result";
 	private static String partitionFile = "_index_partition";
-	private static String stopwordsFile = "donttouch/stopwords/part-r-00000";
+	static String stopwordsFile = "donttouch/stopwords/part-r-00000";
 	
-	public static class QueryMapper extends Mapper<Text, Text, NullWritable, Text> {
+	public static class QueryMapper extends Mapper<Text, PostingList, Text, PostingList> {
 		/**
 		 * QueryMapper
+		 * the input is read by TermLookupInputFormat and only holds the query terms
 		 * parameters:
 		 * 	terms: tokenized query terms
 		 * 
 		 */
-		private Stemmer stmr = new Stemmer();
 		private List<String> terms;
-		private Text postingList = new Text();
-		public void map(Text key,  Text value, Context context) throws IOException, InterruptedException {
-			if(terms.contains(key.toString())) {
-				postingList.set(key.toString().concat(" ").concat(value.toString()));
-				context.write(NullWritable.get(), postingList);
-			}
+		public void map(Text key,  PostingList value, Context context) throws IOException, InterruptedException {
+			if(terms.contains(key.toString())) context.write(key, value);
 		}
 		
 		public void setup(Context context) throws IOException, InterruptedException {
-			/**
-			 *  get the query from configuration and put all useful terms into terms
-			 *  split by either ( or )
-			 *  only add when the term is not in ("not", "and", "or")
-			 */
-			terms = new ArrayList<String>();
-			String query = context.getConfiguration().get("query");
-			for(String term : query.split("[ \\(\\)]")) {
-				if(term.isEmpty() || term.equals("and") || term.equals("or") || term.equals("not")) continue;
-				stmr.add(term.toCharArray(), term.length());
-				stmr.stem();
-				terms.add(stmr.toString());
-			}
+			terms = queryTerms(context.getConfiguration().get("query"));
 		}
 	}
 	
-	public static class QueryReducer extends Reducer<NullWritable, Text, Text, NullWritable> {
+	public static class QueryReducer extends Reducer<Text, PostingList, Text, NullWritable> {
 		/**
 		 * QueryReducer: take (word, postingList) and turn it into search result
+		 * a single reducer collects the posting list of every term and evaluates the query in cleanup
 		 * parameters:
 		 * 	q: a query object
+		 * 	terms: posting lists of the query terms
 		 * 
 		 */
 		private Query q;
+		private Map<String, ColumnarPostingList> terms = new HashMap<String, ColumnarPostingList>();
 		private Text result = new Text();
-		public void reduce(NullWritable key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-			Map<String, PostingList> terms = new HashMap<String, PostingList>();
-			for(Text value : values) {
-				String[] strs = value.toString().split(" ");
-				terms.put(strs[0], new PostingList(strs[1]));
-			}
-			SearchResult res = new SearchResult();
-			PostingList postings = q.evaluate(terms).list;
-			postings.sortPostingByScore();
-			res.readFromPostingList(postings);
+		public void reduce(Text key, Iterable<PostingList> values, Context context) throws IOException, InterruptedException {
+			// the value object is reused by the framework, but every value is read into new columns
+			for(PostingList value : values) terms.put(key.toString(), value.columns());
+		}
+		
+		public void cleanup(Context context) throws IOException, InterruptedException {
+			SearchResult res = evaluate(q, terms, context.getConfiguration().getInt("topK", 0));
 			result.set(res.toString());
 			context.write(result, NullWritable.get());
 		}
@@ -104,61 +92,193 @@ public class QueryMapred {
 			/**
 			 * get query from configuration and parse the query into a query object
 			 */
-			QueryParser.STOP_WORD_SET.clear();
-			try(FileSystem fs = FileSystem.newInstance(context.getConfiguration()); 
-					BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(new Path(stopwordsFile))))) {
-				String word;
-				Stemmer stmr = new Stemmer();
-				while((word = reader.readLine()) != null) {
-					stmr.add(word.toCharArray(), word.length());
-					stmr.stem();
-					word = stmr.toString();
-					QueryParser.STOP_WORD_SET.add(word);
-				}
-			}
+			loadStopWords(context.getConfiguration());
 			String query = context.getConfiguration().get("query");
 			QueryParser parser = new QueryParser();
 			this.q = parser.parseQuery(query);
 		}
-
+		
 	}
 	
-	private static List<String> fetchInputFiles(Configuration conf, Path partitionPath, String dir, String query){
+	static void loadStopWords(Configuration conf) throws IOException {
 		/**
-		 *  check each query terms in partition file for inverted index
-		 *  only add file which contains the term we want to improve performance
-		 *  if there is no partition file, only the first file will be used
-		 *  
-		 *  Parameter: 
-		 *  	conf:
-		 *  	partitionPath: the path of partition file for inverted index
-		 *  	dir: inverted index directory
-		 *  	query:
-		 *  Return: a list of filenames to be add 
+		 * read the stop words into QueryParser.STOP_WORD_SET, stemmed like the query words
 		 */
-		
-		// fetch boundaries for lemma
-		List<String> boundaries = new ArrayList<String>();
-		List<String> filenames = new ArrayList<String>();
-		try(SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(partitionPath))) {
-			Text word = new Text();
-			while(reader.next(word)) boundaries.add(word.toString().split(":")[0]);
-		}catch(IOException e) {}
-		
-		// get corresponding file names
-		String head = dir.concat(File.separator).concat("part-r-");
+		QueryParser.STOP_WORD_SET.clear();
+		try(FileSystem fs = FileSystem.newInstance(conf); 
+				BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(new Path(stopwordsFile))))) {
+			String word;
+			Stemmer stmr = new Stemmer();
+			while((word = reader.readLine()) != null) {
+				stmr.add(word.toCharArray(), word.length());
+				stmr.stem();
+				word = stmr.toString();
+				QueryParser.STOP_WORD_SET.add(word);
+			}
+		}
+	}
+	
+	static SearchResult evaluate(Query q, Map<String, ColumnarPostingList> terms, int topK) {
+		return evaluate(q, terms, topK, null);
+	}
+	
+	static SearchResult evaluate(Query q, Map<String, ColumnarPostingList> terms, int topK, SubExpressionCache cache) {
+		return evaluate(q, terms, topK, cache, null, 0, 1);
+	}
+	
+	static SearchResult evaluate(Query q, Map<String, ColumnarPostingList> terms, int topK, SubExpressionCache cache, ForkJoinPool pool, long cutoff, int ranges) {
+		/**
+		 * evaluate a query on the posting lists of its terms
+		 * in top-k mode (topK > 0) only the topK best documents are ranked: a plain disjunction is
+		 * evaluated by TopKEvaluator, its count is then the largest document frequency, a lower
+		 * bound of the real count, any other query is evaluated fully but the documents are
+		 * selected with a heap instead of sorted, the count is exact, in both cases the result
+		 * gets a continuation ranking the following pages on demand
+		 * the sub-expression cache, if any, is shared by the queries evaluated in the process
+		 * with a pool the subtrees of the query costing at least cutoff postings are evaluated in
+		 * parallel (see QueryParser.Query.evaluate), or with ranges > 1 the docId space is split
+		 * into that many ranges evaluated in parallel (see evaluateRanges)
+		 */
+		SearchResult res = new SearchResult();
+		List<String> words = topK > 0 ? q.disjunctionTerms() : null;
+		if(words != null) {
+			List<ColumnarPostingList> lists = new ArrayList<ColumnarPostingList>();
+			int count = 0;
+			for(String word : words) {
+				ColumnarPostingList list = terms.getOrDefault(word, new ColumnarPostingList());
+				lists.add(list);
+				count = Math.max(count, list.size());
+			}
+			PostingList postings = TopKEvaluator.topK(lists, topK);
+			res.readFromPostingList(postings);
+			// nothing is pruned before the heap is full, fewer than topK documents means all of them
+			if(postings.size() == topK) {
+				res.setCount(Math.max(count, topK), false);
+				res.setContinuation(new TopKEvaluator.Disjunction(lists, topK));
+			}
+		}else if(pool != null && ranges > 1) {
+			return evaluateRanges(q, terms, topK, pool, ranges);
+		}else {
+			return rank(q.evaluateColumns(terms, cache, pool, cutoff).list.toPostingList(), topK);
+		}
+		return res;
+	}
+	
+	static SearchResult rank(PostingList postings, int topK) {
+		/**
+		 * Output: search result of an evaluated posting list, only the topK best documents are
+		 * ranked in top-k mode, behind a continuation ranking the others
+		 */
+		SearchResult res = new SearchResult();
+		if(topK > 0 && postings.size() > topK) {
+			int count = postings.size();
+			TopKEvaluator.Selection selection = new TopKEvaluator.Selection(postings);
+			res.readFromPostingList(selection.next(topK));
+			res.setCount(count, true);
+			res.setContinuation(selection);
+		}else {
+			postings.sortPostingByScore();
+			res.readFromPostingList(postings);
+		}
+		return res;
+	}
+	
+	private static class RangeResult {
+		/**
+		 * RangeResult: the documents of a docId range, the first ones ranked and a continuation
+		 * ranking the others, null when they are all ranked
+		 */
+		private int count;
+		private PostingList ranked;
+		private TopKEvaluator.Selection rest;
+	}
+	
+	private static SearchResult evaluateRanges(final Query q, Map<String, ColumnarPostingList> terms, final int topK, ForkJoinPool pool, int ranges) {
+		/**
+		 * data parallel evaluation: the docId space is split into ranges holding the same number of
+		 * postings of the longest list, each range is a task evaluating the whole query on the
+		 * slices of the lists in the range, found by binary search, and ranking its documents (its
+		 * topK best ones in top-k mode), the rankings are then merged by TopKEvaluator.Merge
+		 * the set operations only combine the postings of a document, so the documents and the
+		 * count are the ones of the sequential evaluation, but doAnd orders its operands by their
+		 * size in the range, a score may differ in rounding, or for a phrase of three words or more
+		 * in the pair of words whose distance is counted
+		 * the sub-expression cache is not used, a result of a range is not the one of the query
+		 */
+		final Map<String, ColumnarPostingList> columns = new HashMap<String, ColumnarPostingList>();
+		ColumnarPostingList longest = new ColumnarPostingList();
+		for(String word : q.words()) {
+			ColumnarPostingList list = terms.getOrDefault(word, new ColumnarPostingList());
+			columns.put(word, list);
+			if(list.size() > longest.size()) longest = list;
+		}
+		ranges = Math.max(1, Math.min(ranges, longest.size()));
+		// range i holds the docIds from bounds[i] to bounds[i + 1] (excluded)
+		final int[] bounds = new int[ranges + 1];
+		bounds[0] = Integer.MIN_VALUE;
+		for(int i = 1; i < ranges; ++i) bounds[i] = longest.getDocId((int)((long)i * longest.size() / ranges));
+		bounds[ranges] = Integer.MAX_VALUE;
+		List<ForkJoinTask<RangeResult>> tasks = new ArrayList<ForkJoinTask<RangeResult>>();
+		for(int i = 0; i < ranges; ++i) {
+			final int range = i;
+			final boolean last = i == ranges - 1;
+			tasks.add(pool.submit(new Callable<RangeResult>() {
+				public RangeResult call() {
+					Map<String, ColumnarPostingList> slices = new HashMap<String, ColumnarPostingList>();
+					for(Map.Entry<String, ColumnarPostingList> entry : columns.entrySet()) {
+						ColumnarPostingList list = entry.getValue();
+						int from = list.advance(0, bounds[range]);
+						int to = last ? list.size() : list.advance(from, bounds[range + 1]);
+						slices.put(entry.getKey(), list.slice(from, to));
+					}
+					RangeResult result = new RangeResult();
+					PostingList postings = q.evaluateColumns(slices).list.toPostingList();
+					result.count = postings.size();
+					if(topK > 0 && postings.size() > topK) {
+						result.rest = new TopKEvaluator.Selection(postings);
+						result.ranked = result.rest.next(topK);
+					}else {
+						postings.sortPostingByScore();
+						result.ranked = postings;
+					}
+					return result;
+				}
+			}));
+		}
+		int count = 0;
+		List<PostingList> ranked = new ArrayList<PostingList>();
+		List<SearchResult.Continuation> rests = new ArrayList<SearchResult.Continuation>();
+		for(ForkJoinTask<RangeResult> task : tasks) {
+			RangeResult result = task.join();
+			count += result.count;
+			ranked.add(result.ranked);
+			rests.add(result.rest);
+		}
+		TopKEvaluator.Merge merge = new TopKEvaluator.Merge(ranked, rests);
+		SearchResult res = new SearchResult();
+		if(topK > 0 && count > topK) {
+			res.readFromPostingList(merge.next(topK));
+			res.setCount(count, true);
+			res.setContinuation(merge);
+		}else res.readFromPostingList(merge.next(count));
+		return res;
+	}
+	
+	static List<String> queryTerms(String query) {
+		/**
+		 *  put all useful terms of the query into a list
+		 *  split by either ( or )
+		 *  only add when the term is not in ("not", "and", "or")
+		 */
+		List<String> terms = new ArrayList<String>();
+		Stemmer stmr = new Stemmer();
 		for(String term : query.split("[ \\(\\)]")) {
 			if(term.isEmpty() || term.equals("and") || term.equals("or") || term.equals("not")) continue;
-			int i = 0;
-			for(String bdry : boundaries)
-				if(term.compareTo(bdry) < 0) break;
-				else ++i;
-			String filename = head.concat(String.format("%05d", i));
-			if(!filenames.contains(filename)) filenames.add(filename);
+			stmr.add(term.toCharArray(), term.length());
+			stmr.stem();
+			terms.add(stmr.toString());
 		}
-		
-		System.out.println(filenames);
-		return filenames;
+		return terms;
 	}
 	
 	public static String runMapred(Configuration conf, String query, String[] otherArgs) throws Exception{
@@ -168,9 +288,12 @@ public class QueryMapred {
 		String queryOutput = QueryMapred.queryOutput;
 		for(int i = 2; i < otherArgs.length; i += 2) {
 			if(!otherArgs[i].startsWith("-") || i + 1 >= otherArgs.length) {
-				System.err.println("Usage: query page (-i indexFile) (-o outputFile)");
+				System.err.println("Usage: query page (-i indexFile) (-o outputFile) (-m full/topk)");
 				System.exit(0);
 			}
+			// top-k mode only evaluates the documents up to the requested page
+			if(otherArgs[i].equals("-m") && otherArgs[i + 1].equals("topk"))
+				conf.setInt("topK", Integer.valueOf(otherArgs[1]) * SearchResult.PAGE_SIZE);
 			if(otherArgs[i].equals("-i")) {
 				String dir = otherArgs[i + 1].concat(File.separator);
 				indexFile = dir.concat(indexFile);
@@ -190,15 +313,16 @@ public class QueryMapred {
 		job.setMapperClass(QueryMapper.class);
 		job.setReducerClass(QueryReducer.class);
 		
-		job.setInputFormatClass(SequenceFileInputFormat.class);
-		job.setMapOutputKeyClass(NullWritable.class);
-		job.setMapOutputValueClass(Text.class);
+		job.setInputFormatClass(TermLookupInputFormat.class);
+		job.setMapOutputKeyClass(Text.class);
+		job.setMapOutputValueClass(PostingList.class);
+		job.setNumReduceTasks(1);
 		job.setOutputKeyClass(Text.class);
 		job.setOutputValueClass(NullWritable.class);
 		
-		// Add all files needed to InputPath
-		for(String filename : fetchInputFiles(conf, partitionPath, indexFile, query))
-			FileInputFormat.addInputPath(job, new Path(filename));
+		// only read the posting lists of the query terms, one split per term
+		TermLookupInputFormat.setIndex(job, new Path(indexFile), partitionPath);
+		TermLookupInputFormat.setTerms(job, queryTerms(query));
 		FileOutputFormat.setOutputPath(job, outPath);
 		job.waitForCompletion(true);
 		return queryOutput;
@@ -210,6 +334,7 @@ public class QueryMapred {
 		 * REQUIRED query in arguments, other arguments are optional
 		 * use -i to specify inverted index folder which contains "inverted" directory
 		 * use -o to specify query result folder
+		 * use -m topk to only rank the documents up to the requested page
 		 */
 		Configuration conf = new Configuration();
 		conf.set("mapreduce.job.queuename", "hadoop02");
@@ -217,24 +342,34 @@ public class QueryMapred {
 		
 		// Error when no query
 		if(otherArgs.length < 1) {
-			System.err.println("Usage: query page (-i indexFolder) (-o outputFolder)");
+			System.err.println("Usage: query page (-i indexFolder) (-o outputFolder) (-m full/topk)");
 			System.exit(0);
 		}
-				
-		CorpusFetcher fetcher = new CorpusFetcher(conf);
-		String query = otherArgs[0].toLowerCase();
-		SearchResult sr = fetcher.isInCache(query);
-		if(sr == null) {
-			String output = runMapred(conf, query, otherArgs);
-			Path outPath = new Path(output.concat(File.separator).concat("part-r-00000"));
-			try(FileSystem fs = FileSystem.get(conf); 
-					BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(outPath)))) {
-				sr = new SearchResult();
-				sr.readFromString(reader.readLine());
-				fetcher.writeQueryToCache(query, sr.toString());
+		
+		// cached results belong to the index they were computed on
+		String indexFile = QueryMapred.indexFile;
+		for(int i = 2; i + 1 < otherArgs.length; i += 2)
+			if(otherArgs[i].equals("-i")) indexFile = otherArgs[i + 1].concat(File.separator).concat(indexFile);
+		// closed on every path, so the cache log is flushed and its compaction finished
+		try(CorpusFetcher fetcher = new CorpusFetcher(conf, new Path(indexFile))) {
+			// the cache key drops the stop words
+			loadStopWords(conf);
+			String query = otherArgs[0].toLowerCase();
+			SearchResult sr = fetcher.isInCache(query);
+			String pageNum = otherArgs[1];
+			// a cached top-k result may not reach the requested page
+			if(sr != null && !sr.hasPage(Integer.valueOf(pageNum))) sr = null;
+			if(sr == null) {
+				String output = runMapred(conf, query, otherArgs);
+				Path outPath = new Path(output.concat(File.separator).concat("part-r-00000"));
+				try(FileSystem fs = FileSystem.newInstance(conf); 
+						BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(outPath)))) {
+					sr = new SearchResult();
+					sr.readFromString(reader.readLine());
+					fetcher.writeQueryToCache(query, sr.toString());
+				}
 			}
+			fetcher.writeResult(sr, Integer.valueOf(pageNum), query);
 		}
-		String pageNum = otherArgs[1];
-		fetcher.writeResult(sr, Integer.valueOf(pageNum), query);
 	}
 }
@@ -0,0 +1,252 @@
+package code.query;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import util.ColumnarPostingList;
+import util.CorpusFetcher;
+import util.InvertedIndexReader;
+import util.PostingCache;
+import util.QueryCache;
+import util.QueryParser;
+import util.QueryPlanner;
+import util.QueryParser.Query;
+import util.SearchResult;
+import util.SubExpressionCache;
+
+public class QueryServer implements Closeable {
+	/**
+	 * QueryServer: answer queries from a resident process instead of a MapReduce job per query
+	 * the inverted index is opened once, a query reads the posting lists of its terms through
+	 * an InvertedIndexReader and is evaluated in memory like QueryMapred.QueryReducer does,
+	 * the answer is the output of CorpusFetcher.writeResult
+	 * decoded posting lists are kept in a PostingCache and the results of shared clauses in a
+	 * SubExpressionCache between queries, their counters are printed on standard error when the
+	 * server stops
+	 * with "queryTraceSample" set to n > 0, one set operation of the query evaluation out of n is
+	 * traced on standard error with the sizes of its lists and its duration
+	 * with "queryParallelism" set to n > 0, the subtrees of a query whose lists hold at least
+	 * "queryParallelCutoff" postings are evaluated in parallel by a ForkJoinPool of n threads
+	 * shared by the connections, with "queryRanges" set to n > 1 the docId space is split into n
+	 * ranges evaluated in parallel instead (see QueryMapred.evaluate), by a pool of
+	 * "queryParallelism" threads or one per core
+	 * without parallel evaluation, a query other than a top-k disjunction is evaluated by a
+	 * QueryPlanner reading the lists of its terms from the smallest ones and only when needed,
+	 * unless "queryPlanner" is false, a request "explain query" answers the plan of the query
+	 * Parameters:
+	 * 	index: reader of the inverted index
+	 * 	postings: cache of the posting lists read from index
+	 * 	subExpressions: cache of the results of query clauses
+	 * 	planner: planner of the sequential evaluation, null when it is off
+	 * 	evaluators, cutoff, ranges: pool of the parallel evaluation, null when it is off, its
+	 * 	cutoff and the number of docId ranges
+	 * 	live: the last LIVE_RESULTS top-k results still holding a continuation, by cache key, so
+	 * 	that asking for a later page ranks only the missing documents
+	 * 	fetcher: query cache and corpus
+	 * 	topK: number of documents ranked per requested page in top-k mode, 0 for full evaluation
+	 */
+	private static String indexFile = "inverted";
+	private static final int LIVE_RESULTS = 16;
+	
+	private InvertedIndexReader index;
+	private PostingCache postings;
+	private SubExpressionCache subExpressions;
+	private QueryPlanner planner;
+	private ForkJoinPool evaluators;
+	private long cutoff;
+	private int ranges;
+	private LinkedHashMap<String, SearchResult> live = new LinkedHashMap<String, SearchResult>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, SearchResult> eldest) {
+			return size() > LIVE_RESULTS;
+		}
+	};
+	private CorpusFetcher fetcher;
+	private int topK;
+	
+	public QueryServer(Configuration conf, Path indexDir, int topK) throws IOException {
+		this.topK = topK;
+		this.fetcher = new CorpusFetcher(conf, indexDir);
+		this.index = new InvertedIndexReader(conf, indexDir);
+		this.postings = new PostingCache(conf, index);
+		this.subExpressions = new SubExpressionCache(conf);
+		QueryMapred.loadStopWords(conf);
+		int parallelism = conf.getInt("queryParallelism", 0);
+		this.ranges = conf.getInt("queryRanges", 1);
+		if(parallelism > 0) this.evaluators = new ForkJoinPool(parallelism);
+		else if(ranges > 1) this.evaluators = new ForkJoinPool();
+		this.cutoff = conf.getLong("queryParallelCutoff", 100000);
+		if(conf.getBoolean("queryPlanner", true)) this.planner = new QueryPlanner(index.getDictionary(), postings);
+		int traceSample = conf.getInt("queryTraceSample", 0);
+		if(traceSample > 0) QueryParser.setTracer(new QueryParser.Tracer() {
+			public void trace(String operation, int size1, int size2, int result, long nanos) {
+				System.err.println(String.format("trace %s %d %d -> %d %dus", operation, size1, size2, result, nanos / 1000));
+			}
+		}, traceSample);
+	}
+	
+	public SearchResult search(String query, int page) throws IOException {
+		/**
+		 * Input:
+		 * 	query: lower case query
+		 * 	page: requested page, top-k mode ranks the documents up to this page
+		 *
+		 * Output: search result of the query
+		 */
+		Query q = new QueryParser().parseQuery(query);
+		// a top-k disjunction reads all its lists anyway
+		if(planner != null && evaluators == null && (topK == 0 || q.disjunctionTerms() == null))
+			return QueryMapred.rank(planner.evaluate(q, subExpressions).list.toPostingList(), topK * page);
+		Map<String, ColumnarPostingList> terms = new HashMap<String, ColumnarPostingList>();
+		for(String word : q.words()) {
+			ColumnarPostingList list = postings.get(word);
+			if(list != null) terms.put(word, list);
+		}
+		return QueryMapred.evaluate(q, terms, topK * page, subExpressions, evaluators, cutoff, ranges);
+	}
+	
+	public void answer(String query, int page, PrintStream out) throws IOException {
+		/**
+		 * answer a query with the cache like QueryMapred.main and write the requested page to out
+		 * a live result missing the page is extended by its continuation, the cache is updated
+		 * with the new pages
+		 */
+		SearchResult sr;
+		String key = QueryCache.normalize(query);
+		synchronized(live) {
+			sr = live.get(key);
+		}
+		if(sr != null) {
+			String extended = null;
+			synchronized(sr) {
+				if(!sr.hasPage(page) && sr.extend(page)) extended = sr.toString();
+				if(!sr.hasPage(page)) sr = null;
+			}
+			if(extended != null) synchronized(fetcher) {
+				fetcher.writeQueryToCache(query, extended);
+			}
+		}
+		if(sr == null) synchronized(fetcher) {
+			sr = fetcher.isInCache(query);
+		}
+		// a cached top-k result may not reach the requested page
+		if(sr != null && !sr.hasPage(page)) sr = null;
+		if(sr == null) {
+			sr = search(query, page);
+			if(topK > 0) synchronized(live) {
+				live.put(key, sr);
+			}
+			synchronized(fetcher) {
+				fetcher.writeQueryToCache(query, sr.toString());
+			}
+		}
+		synchronized(sr) {
+			fetcher.writeResult(sr, page, query, out);
+		}
+		out.flush();
+	}
+	
+	private void answer(String request, PrintStream out) {
+		/**
+		 * a request is a line holding the page number and the query, separated by a space, or
+		 * "explain" and the query
+		 */
+		String[] parts = request.trim().split(" ", 2);
+		try {
+			if(parts.length == 2 && parts[0].equals("explain") && planner != null) {
+				out.print(planner.explain(new QueryParser().parseQuery(parts[1].toLowerCase())));
+				out.flush();
+				return;
+			}
+			if(parts.length < 2) throw new NumberFormatException();
+			answer(parts[1].toLowerCase(), Integer.valueOf(parts[0]), out);
+		}catch(NumberFormatException e) {
+			out.println("Usage: page query | explain query");
+		}catch(IOException e) {
+			e.printStackTrace();
+			out.println("error: " + e.getMessage());
+		}
+	}
+	
+	public PostingCache getPostingCache() {
+		return postings;
+	}
+	
+	public void close() throws IOException {
+		System.err.println(postings);
+		System.err.println(subExpressions);
+		if(evaluators != null) evaluators.shutdown();
+		index.close();
+		fetcher.close();
+	}
+	
+	public static void main(String[] args) throws Exception {
+		/**
+		 * entrance of the query server
+		 * OPTIONAL arguments:
+		 * 	use -i to specify inverted index folder which contains "inverted" directory
+		 * 	use -p to listen on a port, each connection sends one request line and reads the answer,
+		 * 	requests are read from standard input otherwise
+		 * 	use -m topk to only rank the documents up to the requested page
+		 * 	use -t to set the number of connections served in parallel, default 4
+		 */
+		Configuration conf = new Configuration();
+		String[] otherArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+		String indexFile = QueryServer.indexFile;
+		int port = -1, threads = 4, topK = 0;
+		for(int i = 0; i < otherArgs.length; i += 2) {
+			if(!otherArgs[i].startsWith("-") || i + 1 >= otherArgs.length) {
+				System.err.println("Usage: (-i indexFolder) (-p port) (-m full/topk) (-t threads)");
+				System.exit(0);
+			}
+			if(otherArgs[i].equals("-i")) indexFile = otherArgs[i + 1].concat(File.separator).concat(QueryServer.indexFile);
+			else if(otherArgs[i].equals("-p")) port = Integer.valueOf(otherArgs[i + 1]);
+			else if(otherArgs[i].equals("-m") && otherArgs[i + 1].equals("topk")) topK = SearchResult.PAGE_SIZE;
+			else if(otherArgs[i].equals("-t")) threads = Integer.valueOf(otherArgs[i + 1]);
+		}
+		
+		try(final QueryServer server = new QueryServer(conf, new Path(indexFile), topK)) {
+			if(port < 0) {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+				String request;
+				while((request = reader.readLine()) != null) server.answer(request, System.out);
+				return;
+			}
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try(ServerSocket socket = new ServerSocket(port)) {
+				while(true) {
+					final Socket connection = socket.accept();
+					pool.execute(new Runnable() {
+						public void run() {
+							try(Socket s = connection;
+									BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+									PrintStream out = new PrintStream(s.getOutputStream(), false, "UTF-8")) {
+								String request = in.readLine();
+								if(request != null) server.answer(request, out);
+							}catch(IOException e) {
+								e.printStackTrace();
+							}
+						}
+					});
+				}
+			}finally {
+				pool.shutdown();
+			}
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package code.query;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import util.PostingList;
+import util.PostingList.Posting;
+import util.QueryParser;
+import util.QueryParser.Query;
+
+public class SetOperationBenchmark {
+	/**
+	 * SetOperationBenchmark: throughput of the query evaluation (QueryParser.Query.evaluate) on
+	 * synthetic posting lists, no index is needed
+	 * the terms have the document frequencies of a Wikipedia dump, from a rare term to one in
+	 * half of the documents, the queries mix conjunctions of skewed and of similar lists,
+	 * negations, or clauses and phrases, each is evaluated for a number of rounds after a warm up,
+	 * sequentially or by the parallel evaluator with every subtree forked
+	 * Parameters:
+	 * 	TERMS, FREQUENCIES: the synthetic terms and the fraction of the documents holding them
+	 * 	QUERIES: the queries timed
+	 */
+	private static final String[] TERMS = {"rare", "uncommon", "topic", "common", "frequent", "ubiquitous"};
+	private static final double[] FREQUENCIES = {0.0001, 0.001, 0.01, 0.05, 0.2, 0.5};
+	private static final String[] QUERIES = {
+		"rare and ubiquitous",
+		"topic and common",
+		"common and frequent and ubiquitous",
+		"uncommon and topic and common and frequent",
+		"frequent and not common",
+		"common and not (topic or uncommon)",
+		"(topic or common) and (frequent or ubiquitous)",
+		"common frequent ubiquitous",
+		"(topic or common or frequent or ubiquitous) and (uncommon or common or frequent) and (topic or ubiquitous)",
+	};
+	
+	private static PostingList randomList(Random random, int documents, double frequency) {
+		/**
+		 * a posting list holding each document with the given probability, with 1 to 8 positions
+		 */
+		List<Posting> postings = new ArrayList<Posting>();
+		for(int docId = 0; docId < documents; ++docId) {
+			if(random.nextDouble() >= frequency) continue;
+			StringBuilder positions = new StringBuilder();
+			int tf = 1 + random.nextInt(8);
+			for(int i = 0; i < tf; ++i) {
+				if(i > 0) positions.append(Posting.posSep);
+				positions.append(1 + random.nextInt(100));
+			}
+			postings.add(new Posting(docId, random.nextDouble(), positions.toString()));
+		}
+		return new PostingList(postings);
+	}
+	
+	public static void main(String[] args) throws Exception {
+		/**
+		 * OPTIONAL arguments in order:
+		 * 	rounds: number of evaluations of each query, default 20
+		 * 	documents: number of documents of the collection, default 1000000
+		 * 	threads: parallelism of the evaluation, default 0 (sequential)
+		 */
+		Configuration conf = new Configuration();
+		String[] otherArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+		if(otherArgs.length > 0 && !otherArgs[0].matches("\\d+")) {
+			System.err.println("Arguments : (rounds) (documents) (threads)");
+			System.exit(0);
+		}
+		int rounds = otherArgs.length > 0 ? Integer.parseInt(otherArgs[0]) : 20;
+		int documents = otherArgs.length > 1 ? Integer.parseInt(otherArgs[1]) : 1000000;
+		int threads = otherArgs.length > 2 ? Integer.parseInt(otherArgs[2]) : 0;
+		ForkJoinPool pool = threads > 0 ? new ForkJoinPool(threads) : null;
+		
+		QueryParser parser = new QueryParser();
+		Random random = new Random(0);
+		Map<String, PostingList> terms = new HashMap<String, PostingList>();
+		for(int i = 0; i < TERMS.length; ++i) {
+			// the queries name the terms as the parser stems them
+			String term = parser.parseQuery(TERMS[i]).words().iterator().next();
+			terms.put(term, randomList(random, documents, FREQUENCIES[i]));
+		}
+		
+		System.out.println(String.format("%-48.48s %10s %10s %12s", "query", "results", "ms/round", "postings/s"));
+		long totalStart = System.nanoTime();
+		for(String query : QUERIES) {
+			Query q = parser.parseQuery(query);
+			long inputs = 0;
+			for(String term : q.words()) inputs += terms.get(term).size();
+			// warm up rounds before timing
+			int results = 0;
+			for(int i = 0; i < Math.max(1, rounds / 4); ++i) results = q.evaluate(terms, null, pool, 1).list.size();
+			long start = System.nanoTime();
+			for(int i = 0; i < rounds; ++i) q.evaluate(terms, null, pool, 1);
+			double ms = (System.nanoTime() - start) / 1e6 / rounds;
+			System.out.println(String.format("%-48.48s %10d %10.3f %12.0f", query, results, ms, inputs / ms * 1000));
+		}
+		System.out.println(String.format("total: %.1f ms", (System.nanoTime() - totalStart) / 1e6));
+		if(pool != null) pool.shutdown();
+	}
+}
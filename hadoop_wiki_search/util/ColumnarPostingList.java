@@ -0,0 +1,352 @@
+package util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import util.PostingList.Posting;
+
+public class ColumnarPostingList {
+	/**
+	 * ColumnarPostingList: in-memory posting list of primitive columns, the form a list read from
+	 * the index is decoded into (PostingList.readFields), cached in (PostingCache) and evaluated
+	 * on by QueryParser.Query, a posting costs an int docId, a float score and an int offset into
+	 * its positions instead of a Posting object
+	 * the lists are sorted by docId and never modified once built, views and copies may share
+	 * their columns (a slice is a window of the columns of its parent, nothing is copied), except the intermediate results of a conjunction which QueryParser.Query
+	 * rebuilds in place (clear) instead of allocating a list per operand
+	 * the scores of a stored list (read from the index, or a slice of one) are the floats written
+	 * to the index, the results of the set operations keep their scores as doubles, all the
+	 * arithmetic on them is done in double either way
+	 * the positions are only known for a list read from the index or converted from Posting
+	 * objects (of), or a slice of one, as position gaps in one array with an offset per posting,
+	 * those of a list read from the index are decoded on first use, from the record or from the
+	 * positions file the index stores them in (see PositionFiles), a list whose positions are in
+	 * that file has none until its reader is attached, the results of the set operations have no
+	 * positions like the Posting objects built by QueryParser before
+	 * Parameters:
+	 * 	size: number of postings
+	 * 	base: index in the columns of the first posting, 0 unless the list is a slice
+	 * 	docIds: docId column, its length may exceed base + size
+	 * 	scores, storedScores: score column of a computed list or of a stored list, the other is null
+	 * 	skipDocIds, skipScores: last docId and max score of each block of PostingList.BLOCK_SIZE
+	 * 	postings, built when the list is read or converted, lazily for a computed list, volatile as
+	 * 	a shared list may build them on any thread: skipScores is assigned first and read after a
+	 * 	non null skipDocIds
+	 * 	offsets: positions of posting i are positions[offsets[base + i]] to
+	 * 	positions[offsets[base + i + 1] - 1], null when the list has no positions
+	 * 	positions: position gaps of every posting, null until loaded by reader
+	 * 	reader: decoder of the positions of a list read from the index, null once they are loaded,
+	 * 	volatile as hasPositions reads it without the lock
+	 * 	parent: list a slice shares its columns and its positions with
+	 */
+	private int size;
+	private int base;
+	private int[] docIds;
+	private double[] scores;
+	private float[] storedScores;
+	private volatile int[] skipDocIds;
+	private volatile float[] skipScores;
+	private int[] offsets;
+	private volatile int[] positions;
+	private volatile PositionReader reader;
+	private ColumnarPostingList parent;
+	
+	interface PositionReader {
+		/**
+		 * PositionReader: positions of a list kept encoded until a query needs them
+		 */
+		int[] read(int total) throws IOException;
+		
+		long memorySize();
+	}
+	
+	public ColumnarPostingList() {
+		this(16);
+	}
+	
+	public ColumnarPostingList(int capacity) {
+		this.docIds = new int[Math.max(1, capacity)];
+		this.scores = new double[Math.max(1, capacity)];
+	}
+	
+	ColumnarPostingList(int size, int[] docIds, float[] scores, int[] skipDocIds, float[] skipScores,
+			int[] offsets, PositionReader reader) {
+		/**
+		 * a list read from the index, with the skip entries written with it
+		 */
+		this.size = size;
+		this.docIds = docIds;
+		this.storedScores = scores;
+		this.skipScores = skipScores;
+		this.skipDocIds = skipDocIds;
+		this.offsets = offsets;
+		this.reader = reader;
+	}
+	
+	private ColumnarPostingList(int size, int base, int[] docIds, double[] scores, float[] storedScores) {
+		this.size = size;
+		this.base = base;
+		this.docIds = docIds;
+		this.scores = scores;
+		this.storedScores = storedScores;
+	}
+	
+	static ColumnarPostingList of(List<Posting> postings) {
+		/**
+		 * columns of postings sorted by docId, with their positions
+		 */
+		int n = postings.size();
+		ColumnarPostingList columns = new ColumnarPostingList(n);
+		int[] offsets = new int[n + 1];
+		int total = 0;
+		for(int i = 0; i < n; ++i) {
+			Posting p = postings.get(i);
+			columns.docIds[i] = p.getDocId();
+			columns.scores[i] = p.getScore();
+			offsets[i] = total;
+			total += p.getTf();
+		}
+		offsets[n] = total;
+		int[] positions = new int[total];
+		int k = 0;
+		for(Posting p : postings)
+			for(Integer pos : p.getPositions()) positions[k++] = pos;
+		columns.size = n;
+		columns.offsets = offsets;
+		columns.positions = positions;
+		columns.buildSkips();
+		return columns;
+	}
+	
+	public ColumnarPostingList withoutPositions() {
+		/**
+		 * the same postings without positions, sharing the columns
+		 */
+		return offsets == null ? this : new ColumnarPostingList(size, base, docIds, scores, storedScores);
+	}
+	
+	public ColumnarPostingList slice(int from, int to) {
+		/**
+		 * view of the postings from index from to index to (excluded), sharing the columns of this
+		 * list and its positions, which are loaded once for all its slices, only its skip entries
+		 * are its own
+		 */
+		ColumnarPostingList slice = new ColumnarPostingList(to - from, base + from, docIds, scores, storedScores);
+		if(offsets != null) {
+			slice.offsets = offsets;
+			slice.parent = this;
+		}
+		return slice;
+	}
+	
+	public void add(int docId, double score) {
+		/**
+		 * append a posting, only while a computed list is built, docIds must be increasing
+		 */
+		if(size == docIds.length) {
+			docIds = Arrays.copyOf(docIds, 2 * size);
+			scores = Arrays.copyOf(scores, 2 * size);
+		}
+		docIds[size] = docId;
+		scores[size] = score;
+		++size;
+	}
+	
+	public void clear() {
+		/**
+		 * empty the list to build it again, keeping its columns
+		 */
+		size = 0;
+		skipDocIds = null;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int getDocId(int index) {
+		return docIds[base + index];
+	}
+	
+	public double getScore(int index) {
+		return scores != null ? scores[base + index] : storedScores[base + index];
+	}
+	
+	public boolean hasPositions() {
+		return offsets != null && (positions != null || reader != null || parent != null && parent.hasPositions());
+	}
+	
+	synchronized void attachPositions(PositionReader reader) {
+		/**
+		 * give a list read without its positions the reader of them, before the list is shared
+		 */
+		if(offsets != null && positions == null && this.reader == null && parent == null) this.reader = reader;
+	}
+	
+	private synchronized void loadPositions() {
+		if(positions != null) return;
+		int[] loaded;
+		if(parent != null) loaded = parent.getPositions();
+		else {
+			try {
+				loaded = reader.read(offsets[base + size]);
+			}catch(IOException e) {
+				throw new IllegalStateException("cannot read the positions", e);
+			}
+		}
+		// a list may be shared by the queries of a cache, the reader is only read under the lock
+		positions = loaded;
+		reader = null;
+	}
+	
+	public int[] getPositions() {
+		/**
+		 * position gaps of every posting, see getPositionStart, null without positions
+		 */
+		if(!hasPositions()) return null;
+		if(positions == null) loadPositions();
+		return positions;
+	}
+	
+	public int getPositionStart(int index) {
+		return offsets[base + index];
+	}
+	
+	public int getPositionEnd(int index) {
+		return offsets[base + index + 1];
+	}
+	
+	public void addRange(ColumnarPostingList other, int from, int to) {
+		/**
+		 * append the postings from index from to index to (excluded) of another list
+		 */
+		int n = to - from;
+		if(n <= 0) return;
+		if(size + n > docIds.length) {
+			int capacity = Math.max(size + n, 2 * docIds.length);
+			docIds = Arrays.copyOf(docIds, capacity);
+			scores = Arrays.copyOf(scores, capacity);
+		}
+		from += other.base;
+		System.arraycopy(other.docIds, from, docIds, size, n);
+		if(other.scores != null) System.arraycopy(other.scores, from, scores, size, n);
+		else for(int i = 0; i < n; ++i) scores[size + i] = other.storedScores[from + i];
+		size += n;
+	}
+	
+	public int advance(int from, int docId) {
+		return advance(from, size, docId);
+	}
+	
+	public int advance(int from, int to, int docId) {
+		/**
+		 * find the first posting at or after index from, and before index to, whose docId is not
+		 * smaller than docId
+		 * galloping: the step doubles until a docId not smaller is passed, then the last step is
+		 * binary searched, O(log d) for a posting d places ahead, so a short list driving a long
+		 * one costs O(m log(n / m)) instead of O(m + n)
+		 * Output: index of the posting, to if there is none
+		 */
+		if(from >= to) return to;
+		if(docIds[base + from] >= docId) return from;
+		// search the columns, from base on for a slice
+		int end = base + to;
+		int low = base + from, step = 1;
+		int high = low + 1;
+		while(high < end && docIds[high] < docId) {
+			low = high;
+			step <<= 1;
+			high = low + step;
+		}
+		int i = Arrays.binarySearch(docIds, low + 1, Math.min(high + 1, end), docId);
+		return (i >= 0 ? i : -i - 1) - base;
+	}
+	
+	private void buildSkips() {
+		/**
+		 * compute the last docId and the max score of every block
+		 */
+		int numBlocks = (size + PostingList.BLOCK_SIZE - 1) / PostingList.BLOCK_SIZE;
+		int[] lastDocIds = new int[numBlocks];
+		float[] maxScores = new float[numBlocks];
+		for(int b = 0; b < numBlocks; ++b) {
+			int end = Math.min(size, (b + 1) * PostingList.BLOCK_SIZE);
+			double max = Double.NEGATIVE_INFINITY;
+			for(int i = b * PostingList.BLOCK_SIZE; i < end; ++i) max = Math.max(max, getScore(i));
+			lastDocIds[b] = getDocId(end - 1);
+			// round up so that the float is still an upper bound of the double scores
+			maxScores[b] = (float)max < max ? Math.nextUp((float)max) : (float)max;
+		}
+		// skipDocIds last, a reader seeing it also sees the scores
+		skipScores = maxScores;
+		skipDocIds = lastDocIds;
+	}
+	
+	private int[] skips() {
+		/**
+		 * Output: skipDocIds, built if needed, skipScores may be read once it is returned
+		 */
+		int[] lastDocIds = skipDocIds;
+		if(lastDocIds == null) {
+			buildSkips();
+			lastDocIds = skipDocIds;
+		}
+		return lastDocIds;
+	}
+	
+	public int numBlocks() {
+		return skips().length;
+	}
+	
+	public int getBlockLastDocId(int block) {
+		return skips()[block];
+	}
+	
+	public float getBlockMaxScore(int block) {
+		skips();
+		return skipScores[block];
+	}
+	
+	public float getMaxScore() {
+		/**
+		 * upper bound of the score of any posting in the list
+		 */
+		skips();
+		float max = 0;
+		for(float score : skipScores) max = Math.max(max, score);
+		return max;
+	}
+	
+	public long memorySize() {
+		/**
+		 * estimate of the heap used by the columns, assuming a 64-bit JVM, the positions count
+		 * undecoded while they are, a slice only counts its skip entries as its columns are the
+		 * ones of its parent
+		 */
+		int[] skips = skipDocIds, loaded = positions;
+		PositionReader encoded = reader;
+		long size = 64;
+		if(skips != null) size += 16 + 8L * skips.length;
+		if(parent != null || base != 0) return size;
+		size += 4L * docIds.length + (scores != null ? 8L * scores.length : 4L * storedScores.length);
+		if(offsets != null) size += 16 + 4L * offsets.length;
+		if(loaded != null) size += 16 + 4L * loaded.length;
+		else if(encoded != null) size += encoded.memorySize();
+		return size;
+	}
+	
+	public PostingList toPostingList() {
+		/**
+		 * Posting objects of the list, without positions
+		 */
+		List<Posting> postings = new ArrayList<Posting>(size);
+		for(int i = 0; i < size; ++i) postings.add(new Posting(getDocId(i), getScore(i)));
+		return new PostingList(postings);
+	}
+	
+	public String toString() {
+		return toPostingList().toString();
+	}
+}
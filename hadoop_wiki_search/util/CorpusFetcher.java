@@ -1,31 +1,40 @@
 package util;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.MapFile;
 import org.apache.hadoop.io.Text;
 
-public class CorpusFetcher {
+public class CorpusFetcher implements Closeable {
 	/**
 	 * CopursFetcher: helper class to connect and communicate with corpus and cache file
 	 * Parameters:
 	 * 	conf: hadoop configuration
-	 * 	cacheDir: cache directory containing query result
+	 * 	cacheDir: cache directory containing query result, see QueryCache
 	 * 	corpusDir: directory containing corpus
+	 * 	indexDir: inverted index the cached results were computed on
 	 */
 	private Configuration conf;
+	private Path indexDir;
+	private QueryCache cache;
 	public static String cacheDir = "querycache";
 	public static String corpusDir = "cmpcorpus_map/part-r-00000";
 	
 	public CorpusFetcher(Configuration conf) {
+		this(conf, new Path("inverted"));
+	}
+	
+	public CorpusFetcher(Configuration conf, Path indexDir) {
 		this.conf = conf;
+		this.indexDir = indexDir;
 	}
 	
 	public SearchResult isInCache(String query) throws IOException{
@@ -34,24 +43,9 @@ public class CorpusFetcher {
 		 * Input:
 		 * 	query:
 		 * 
-		 * Output: whether it's present in cache
+		 * Output: the cached result, null if it is not in cache
 		 */
-		Path path = new Path(cacheDir);
-		// return false if the cache file does not exist
-		try(FileSystem fs = FileSystem.newInstance(conf)) {
-			if(!fs.exists(path)) return null;
-		}
-		Text key = new Text();
-		Text value = new Text();
-		// check if the query is in the cache file
-		try(MapFile.Reader reader = new MapFile.Reader(path, conf)) {
-			key.set(query);
-			reader.get(key, value);
-			if(value.toString().isEmpty()) return null;
-		}
-		SearchResult ret = new SearchResult();
-		ret.readFromString(value.toString());
-		return ret;
+		return getCache().get(query);
 	}
 	
 	public void writeQueryToCache(String query, String res) throws IOException{
@@ -61,19 +55,30 @@ public class CorpusFetcher {
 		 * 	query:
 		 * 	res: query search result
 		 */
-		Path path = new Path(cacheDir);
-		try(MapFile.Writer writer = new MapFile.Writer(conf, path, 
-				MapFile.Writer.keyClass(Text.class), MapFile.Writer.valueClass(Text.class))) {
-			Text key = new Text(query);
-			Text value = new Text(res);
-			writer.append(key, value);
-		}
+		getCache().put(query, res);
+	}
+	
+	public QueryCache getCache() throws IOException {
+		/**
+		 * the cache is opened on first use, its log is read at that time
+		 */
+		if(cache == null) cache = new QueryCache(conf, new Path(cacheDir), indexDir);
+		return cache;
+	}
+	
+	public void close() throws IOException {
+		if(cache != null) cache.close();
+		cache = null;
 	}
 	
 	public void writeResult(SearchResult res, int page, String query) {
+		writeResult(res, page, query, System.out);
+	}
+	
+	public void writeResult(SearchResult res, int page, String query, PrintStream out) {
 		/**
 		 * Fetch the document content according to query result and page number
-		 * and write the result to standard output
+		 * and write the result to out, standard output by default
 		 * Input:
 		 * 	res: query search result
 		 * 	page: page number
@@ -88,7 +93,8 @@ public class CorpusFetcher {
 		if (pageNum != 0) docs = page > pageNum? results.get(pageNum - 1) : results.get(page - 1);
 		List<String> highlights = getHighlightWords(query);
 		
-		System.out.println("" + resultNum + "/" + pageNum);
+		// an exact result may only hold its first pages
+		out.println("" + resultNum + "/" + res.getPageCount());
 		
 		Path path = new Path(corpusDir);
 		
@@ -108,7 +114,7 @@ public class CorpusFetcher {
 				
 				String abstrct = getAbstract(content, highlights);
 				
-				System.out.print(doc + "\n" + title + "\n" + abstrct + "$RST$");
+				out.print(doc + "\n" + title + "\n" + abstrct + "$RST$");
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -122,10 +128,10 @@ public class CorpusFetcher {
 		String wrapperEnd = "</span>";
 		final int RANGE = 300;
 		String result = "";
-
-				
+		
+		
 		List<Integer> pos = new ArrayList<Integer>();
-
+		
 		List<int[]> intervals = new ArrayList<int[]>();
 		
 		String lowerContent = content.toLowerCase();
@@ -259,6 +265,6 @@ public class CorpusFetcher {
 	
 	
 	public static void main(String[] args) throws Exception{
-		
+	
 	}
 }
@@ -0,0 +1,100 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+public class InvertedIndexReader implements Closeable {
+	/**
+	 * InvertedIndexReader: fetch the posting list of a single term from an inverted index, whose
+	 * part-r-* partitions are MapFiles sorted by term
+	 * with a TermDictionary the list is read at its offset in the data file of its partition, and
+	 * its positions, stored apart, are only read when a query scores the proximity of two words,
+	 * otherwise the partition is the first one whose last term is not smaller than the term and
+	 * the list is found by MapFile.Reader.get, a binary search in the MapFile index followed by
+	 * a scan of at most io.map.index.interval keys
+	 * the readers are shared, get may be called from several threads
+	 * Parameters:
+	 * 	dict: term dictionary of the index, null if the index has none
+	 * 	data: data file reader of each partition, used with the dictionary
+	 * 	indexDir, positions: directory of the index and its positions files, used with it
+	 * 	readers, lastTerms: MapFile reader and last term of each partition, used without it
+	 */
+	private TermDictionary dict;
+	private Map<Integer, SequenceFile.Reader> data = new TreeMap<Integer, SequenceFile.Reader>();
+	private Path indexDir;
+	private PositionFiles positions;
+	private Map<Integer, MapFile.Reader> readers = new TreeMap<Integer, MapFile.Reader>();
+	private Map<Integer, Text> lastTerms = new TreeMap<Integer, Text>();
+	
+	public InvertedIndexReader(Configuration conf, Path indexDir) throws IOException {
+		FileSystem fs = indexDir.getFileSystem(conf);
+		Path dictPath = new Path(indexDir, TermDictionary.FILE_NAME);
+		if(fs.exists(dictPath)) {
+			dict = TermDictionary.open(conf, dictPath);
+			this.indexDir = indexDir;
+			this.positions = new PositionFiles(conf);
+		}
+		for(FileStatus status : fs.globStatus(new Path(indexDir, "part-r-*"))) {
+			String name = status.getPath().getName();
+			int partition = Integer.parseInt(name.substring(name.lastIndexOf('-') + 1));
+			if(dict != null) {
+				Path file = new Path(status.getPath(), MapFile.DATA_FILE_NAME);
+				data.put(partition, new SequenceFile.Reader(conf, SequenceFile.Reader.file(file)));
+				continue;
+			}
+			MapFile.Reader reader = new MapFile.Reader(status.getPath(), conf);
+			Text last = new Text();
+			reader.finalKey(last);
+			readers.put(partition, reader);
+			lastTerms.put(partition, last);
+		}
+	}
+	
+	public TermDictionary getDictionary() {
+		return dict;
+	}
+	
+	public PostingList get(String term) throws IOException {
+		/**
+		 * Output: posting list of the term, null if the term is not in the index
+		 */
+		Text key = new Text(term);
+		PostingList postings = new PostingList();
+		if(dict != null) {
+			TermDictionary.Entry entry = dict.get(term);
+			if(entry == null) return null;
+			SequenceFile.Reader reader = data.get(entry.getPartition());
+			// seeking and reading must not interleave with another thread
+			synchronized(reader) {
+				if(!TermDictionary.readPostings(reader, entry, key, postings))
+					throw new IOException("the index does not match its dictionary at " + term);
+			}
+			positions.attach(postings, indexDir, entry);
+			return postings;
+		}
+		for(Map.Entry<Integer, Text> last : lastTerms.entrySet()) {
+			if(key.compareTo(last.getValue()) > 0) continue;
+			return readers.get(last.getKey()).get(key, postings) == null ? null : postings;
+		}
+		return null;
+	}
+	
+	public void close() throws IOException {
+		for(SequenceFile.Reader reader : data.values()) reader.close();
+		for(MapFile.Reader reader : readers.values()) reader.close();
+		if(dict != null) {
+			dict.close();
+			positions.close();
+		}
+	}
+}
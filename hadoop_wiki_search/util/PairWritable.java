@@ -4,14 +4,20 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
-import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
 
-public class PairWritable implements Writable, Comparable<PairWritable>{
+public class PairWritable implements WritableComparable<PairWritable>{
+	/**
+	 * PairWritable: (count, word) pair ordered by count, then by word
+	 * serialized as an int count followed by the word in modified UTF-8, the registered
+	 * Comparator orders serialized pairs the same way without deserializing them
+	 */
 	private int count;
 	private String word;
 	
 	public PairWritable() {
-		
+	
 	}
 	
 	public PairWritable(int count, String word) {
@@ -36,18 +42,47 @@ public class PairWritable implements Writable, Comparable<PairWritable>{
 		this.count = count;
 		this.word = word;
 	}
-
+	
 	public void readFields(DataInput in) throws IOException {
 		count = in.readInt();
 		word = in.readUTF();
 	}
-
+	
 	public void write(DataOutput out) throws IOException {
 		out.writeInt(count);
 		out.writeUTF(word);
 	}
-
+	
 	public int compareTo(PairWritable other) {
-		return count == other.count ? word.compareTo(other.word) : count - other.count;
+		return count == other.count ? word.compareTo(other.word) : Integer.compare(count, other.count);
+	}
+	
+	public int hashCode() {
+		return count * 31 + (word == null ? 0 : word.hashCode());
+	}
+	
+	public boolean equals(Object o) {
+		if(!(o instanceof PairWritable)) return false;
+		PairWritable other = (PairWritable) o;
+		return count == other.count && (word == null ? other.word == null : word.equals(other.word));
+	}
+	
+	public static class Comparator extends WritableComparator {
+		/**
+		 * Comparator: compare the int count, then the UTF bytes of the word
+		 */
+		public Comparator() {
+			super(PairWritable.class);
+		}
+		
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			int cmp = Integer.compare(readInt(b1, s1), readInt(b2, s2));
+			if(cmp != 0) return cmp;
+			return compareBytes(b1, s1 + 6, readUnsignedShort(b1, s1 + 4), b2, s2 + 6, readUnsignedShort(b2, s2 + 4));
+		}
+	}
+	
+	static {
+		WritableComparator.define(PairWritable.class, new Comparator());
 	}
 }
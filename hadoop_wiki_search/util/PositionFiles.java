@@ -0,0 +1,89 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+
+public class PositionFiles implements Closeable {
+	/**
+	 * PositionFiles: the positions files of an inverted index, the index job stores the positions
+	 * of the posting lists of a partition apart from them, in the FILE_NAME file of the partition,
+	 * at the offset recorded in the TermDictionary entry of the term
+	 * attach gives a list read without its positions a reader of them, a file is only opened by
+	 * the first positions read from it, when a query scores the proximity of two words
+	 * the files may be read from several threads, a read holds the lock of its file
+	 * Parameters:
+	 * 	FILE_NAME: name of the positions file in the directory of a partition
+	 * 	files: files opened so far
+	 */
+	public static final String FILE_NAME = "positions";
+	
+	private Configuration conf;
+	private Map<Path, FSDataInputStream> files = new HashMap<Path, FSDataInputStream>();
+	
+	private class StoredPositions implements ColumnarPostingList.PositionReader {
+		/**
+		 * StoredPositions: positions of a list at an offset of a positions file
+		 */
+		private Path file;
+		private long offset;
+		private PostingCodec codec;
+		
+		StoredPositions(Path file, long offset, PostingCodec codec) {
+			this.file = file;
+			this.offset = offset;
+			this.codec = codec;
+		}
+		
+		public int[] read(int total) throws IOException {
+			FSDataInputStream in = open(file);
+			int[] gaps = new int[total];
+			PostingCodec.Scratch scratch = new PostingCodec.Scratch();
+			synchronized(in) {
+				in.seek(offset);
+				codec.readInts(in, gaps, total, scratch);
+			}
+			return gaps;
+		}
+		
+		public long memorySize() {
+			return 48;
+		}
+	}
+	
+	public PositionFiles(Configuration conf) {
+		this.conf = conf;
+	}
+	
+	public void attach(PostingList postings, Path indexDir, TermDictionary.Entry entry) {
+		attach(postings, entry.getPositionsFile(indexDir), entry.getPositionsOffset());
+	}
+	
+	public void attach(PostingList postings, Path file, long offset) {
+		/**
+		 * give a list read from the index the reader of its positions, nothing is read yet
+		 * a negative offset, or a list holding its positions, is left as it is
+		 */
+		if(offset < 0) return;
+		postings.attachPositions(new StoredPositions(file, offset, postings.getCodec()));
+	}
+	
+	private synchronized FSDataInputStream open(Path file) throws IOException {
+		FSDataInputStream in = files.get(file);
+		if(in == null) {
+			in = file.getFileSystem(conf).open(file);
+			files.put(file, in);
+		}
+		return in;
+	}
+	
+	public synchronized void close() throws IOException {
+		for(FSDataInputStream in : files.values()) in.close();
+		files.clear();
+	}
+}
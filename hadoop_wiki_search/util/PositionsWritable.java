@@ -0,0 +1,80 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+public class PositionsWritable implements Writable {
+	/**
+	 * PositionsWritable: sorted word positions of a term in a document
+	 * serialized as the number of positions followed by the gaps between them
+	 * Parameters:
+	 * 	positions: absolute positions in ascending order, only the first size entries are used
+	 * 	size: number of positions
+	 */
+	private int[] positions;
+	private int size;
+	
+	public PositionsWritable() {
+		this.positions = new int[4];
+		this.size = 0;
+	}
+	
+	public PositionsWritable(PositionsWritable other) {
+		this.positions = Arrays.copyOf(other.positions, Math.max(4, other.size));
+		this.size = other.size;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int get(int index) {
+		return positions[index];
+	}
+	
+	public void add(int pos) {
+		if(size == positions.length) positions = Arrays.copyOf(positions, size * 2);
+		positions[size++] = pos;
+	}
+	
+	public void addAll(PositionsWritable other) {
+		/**
+		 * append the positions of other, call sort() afterwards if the two are interleaved
+		 */
+		if(size + other.size > positions.length) positions = Arrays.copyOf(positions, Math.max(size + other.size, size * 2));
+		System.arraycopy(other.positions, 0, positions, size, other.size);
+		size += other.size;
+	}
+	
+	public void sort() {
+		Arrays.sort(positions, 0, size);
+	}
+	
+	public void clear() {
+		size = 0;
+	}
+	
+	public void readFields(DataInput in) throws IOException {
+		size = WritableUtils.readVInt(in);
+		if(size > positions.length) positions = new int[size];
+		int pos = 0;
+		for(int i = 0; i < size; ++i) {
+			pos += WritableUtils.readVInt(in);
+			positions[i] = pos;
+		}
+	}
+	
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, size);
+		int prev = 0;
+		for(int i = 0; i < size; ++i) {
+			WritableUtils.writeVInt(out, positions[i] - prev);
+			prev = positions[i];
+		}
+	}
+}
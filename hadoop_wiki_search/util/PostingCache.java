@@ -0,0 +1,135 @@
+package util;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+public class PostingCache {
+	/**
+	 * PostingCache: decoded posting lists of the terms read from an InvertedIndexReader, kept as
+	 * the columns they are read into, an LRU map bounded by the estimated heap size of the lists
+	 * (ColumnarPostingList.memorySize)
+	 * terms whose document frequency is at least "postingCachePinDf" are pinned once read: they
+	 * are never evicted and are counted in a separate budget of "postingCachePinBytes", a hot
+	 * term that does not fit there falls back to the LRU map, pinning is off when the df is 0
+	 * a list larger than the whole budget is returned but not cached
+	 * the lists are shared by every query, which only reads them, get may be called from several
+	 * threads, two threads missing the same term at once both read it from the index
+	 * Parameters:
+	 * 	index: reader the misses are loaded from
+	 * 	lists: cached lists in access order, pinned: pinned lists
+	 * 	bytes, maxBytes: estimated size of the LRU lists and its bound ("postingCacheMaxBytes")
+	 * 	pinnedBytes, maxPinnedBytes: the same for the pinned lists
+	 * 	hits, misses, evictions: counters since the cache was created
+	 */
+	private InvertedIndexReader index;
+	private LinkedHashMap<String, CachedList> lists = new LinkedHashMap<String, CachedList>(16, 0.75f, true);
+	private Map<String, CachedList> pinned = new HashMap<String, CachedList>();
+	private long bytes = 0;
+	private long maxBytes;
+	private long pinnedBytes = 0;
+	private long maxPinnedBytes;
+	private int pinDf;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	
+	private static class CachedList {
+		/**
+		 * CachedList: a list and the weight it was admitted with
+		 */
+		private ColumnarPostingList list;
+		private long weight;
+		
+		CachedList(ColumnarPostingList list, long weight) {
+			this.list = list;
+			this.weight = weight;
+		}
+	}
+	
+	public PostingCache(Configuration conf, InvertedIndexReader index) {
+		this.index = index;
+		this.maxBytes = conf.getLong("postingCacheMaxBytes", 256L << 20);
+		this.maxPinnedBytes = conf.getLong("postingCachePinBytes", 64L << 20);
+		this.pinDf = conf.getInt("postingCachePinDf", 0);
+	}
+	
+	public ColumnarPostingList get(String term) throws IOException {
+		/**
+		 * Output: posting list of the term, null if the term is not in the index
+		 */
+		synchronized(this) {
+			CachedList cached = pinned.get(term);
+			if(cached == null) cached = lists.get(term);
+			if(cached != null) {
+				++hits;
+				return cached.list;
+			}
+			++misses;
+		}
+		// read outside the lock so that a miss does not stall the hits of other queries
+		PostingList postings = index.get(term);
+		if(postings == null) return null;
+		ColumnarPostingList list = postings.columns();
+		put(term, list);
+		return list;
+	}
+	
+	private synchronized void put(String term, ColumnarPostingList list) {
+		if(pinned.containsKey(term) || lists.containsKey(term)) return;
+		long weight = list.memorySize();
+		if(pinDf > 0 && list.size() >= pinDf && pinnedBytes + weight <= maxPinnedBytes) {
+			pinned.put(term, new CachedList(list, weight));
+			pinnedBytes += weight;
+			return;
+		}
+		if(weight > maxBytes) return;
+		lists.put(term, new CachedList(list, weight));
+		bytes += weight;
+		Iterator<CachedList> it = lists.values().iterator();
+		while(bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().weight;
+			it.remove();
+			++evictions;
+		}
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	public synchronized long getBytes() {
+		return bytes + pinnedBytes;
+	}
+	
+	public synchronized int size() {
+		return lists.size() + pinned.size();
+	}
+	
+	public synchronized void clear() {
+		/**
+		 * drop every list, pinned ones included, the counters are kept
+		 */
+		lists.clear();
+		pinned.clear();
+		bytes = 0;
+		pinnedBytes = 0;
+	}
+	
+	public synchronized String toString() {
+		return String.format("posting cache: %d hits, %d misses, %d evictions, %d lists (%d pinned), %d bytes",
+				hits, misses, evictions, size(), pinned.size(), getBytes());
+	}
+}
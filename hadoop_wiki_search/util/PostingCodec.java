@@ -0,0 +1,138 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.WritableUtils;
+
+public enum PostingCodec {
+	/**
+	 * PostingCodec: encoding of the non negative int columns of a posting list (docId gaps, tf,
+	 * position gaps)
+	 * VINT: one variable length int per value
+	 * PFOR: patched frame of reference, blocks of BLOCK_SIZE values bit packed with the width
+	 * that fits most of them, the few larger values are stored as exceptions
+	 * the codecs allocate nothing, the buffers a block is packed in are owned by the caller (see
+	 * Scratch), which reuses them across the columns and the lists it reads or writes
+	 */
+	VINT {
+		public void writeInts(DataOutput out, int[] values, int n, Scratch scratch) throws IOException {
+			for(int i = 0; i < n; ++i) WritableUtils.writeVInt(out, values[i]);
+		}
+		
+		public void readInts(DataInput in, int[] values, int n, Scratch scratch) throws IOException {
+			for(int i = 0; i < n; ++i) values[i] = WritableUtils.readVInt(in);
+		}
+	},
+	PFOR {
+		public void writeInts(DataOutput out, int[] values, int n, Scratch scratch) throws IOException {
+			for(int start = 0; start < n; start += BLOCK_SIZE)
+				writeBlock(out, values, start, Math.min(BLOCK_SIZE, n - start), scratch);
+		}
+		
+		public void readInts(DataInput in, int[] values, int n, Scratch scratch) throws IOException {
+			for(int start = 0; start < n; start += BLOCK_SIZE)
+				readBlock(in, values, start, Math.min(BLOCK_SIZE, n - start), scratch.bytes);
+		}
+	};
+	
+	public static final int BLOCK_SIZE = 128;
+	
+	public static class Scratch {
+		/**
+		 * Scratch: buffers of the codecs, not thread safe, one per reader or writer
+		 * Parameters:
+		 * 	bytes: packed bits of a block
+		 * 	count: number of values of each bit width in a block
+		 */
+		private byte[] bytes = new byte[BLOCK_SIZE * 4];
+		private int[] count = new int[33];
+	}
+	
+	public abstract void writeInts(DataOutput out, int[] values, int n, Scratch scratch) throws IOException;
+	
+	public abstract void readInts(DataInput in, int[] values, int n, Scratch scratch) throws IOException;
+	
+	private static int bitWidth(int value) {
+		return 32 - Integer.numberOfLeadingZeros(value);
+	}
+	
+	private static void writeBlock(DataOutput out, int[] values, int start, int n, Scratch scratch) throws IOException {
+		/**
+		 * block layout: bit width b, number of exceptions, the low b bits of every value packed
+		 * into bytes, then for each exception its index gap and the bits above b
+		 */
+		// choose the width with the smallest estimated size
+		int[] count = scratch.count;
+		byte[] buf = scratch.bytes;
+		Arrays.fill(count, 0);
+		int maxWidth = 0;
+		for(int i = start; i < start + n; ++i) {
+			int w = bitWidth(values[i]);
+			++count[w];
+			maxWidth = Math.max(maxWidth, w);
+		}
+		int b = maxWidth, bestSize = (n * maxWidth + 7) / 8, exceptions = 0, bestExceptions = 0;
+		for(int w = maxWidth - 1; w >= 0; --w) {
+			exceptions += count[w + 1];
+			int size = (n * w + 7) / 8 + exceptions * (1 + (maxWidth - w + 6) / 7);
+			if(size < bestSize) {
+				bestSize = size;
+				b = w;
+				bestExceptions = exceptions;
+			}
+		}
+		out.writeByte(b);
+		WritableUtils.writeVInt(out, bestExceptions);
+		// bit pack the low b bits
+		long acc = 0;
+		int bits = 0, len = 0;
+		long mask = (1L << b) - 1;
+		for(int i = start; i < start + n; ++i) {
+			acc |= (values[i] & mask) << bits;
+			bits += b;
+			while(bits >= 8) {
+				buf[len++] = (byte) acc;
+				acc >>>= 8;
+				bits -= 8;
+			}
+		}
+		if(bits > 0) buf[len++] = (byte) acc;
+		out.write(buf, 0, len);
+		// patch the values that do not fit
+		int prev = 0;
+		for(int i = 0; i < n && bestExceptions > 0; ++i) {
+			int value = values[start + i];
+			if(bitWidth(value) <= b) continue;
+			WritableUtils.writeVInt(out, i - prev);
+			WritableUtils.writeVInt(out, value >>> b);
+			prev = i;
+		}
+	}
+	
+	private static void readBlock(DataInput in, int[] values, int start, int n, byte[] buf) throws IOException {
+		int b = in.readByte();
+		int exceptions = WritableUtils.readVInt(in);
+		int len = (n * b + 7) / 8;
+		in.readFully(buf, 0, len);
+		long acc = 0;
+		int bits = 0, pos = 0;
+		int mask = (int) ((1L << b) - 1);
+		for(int i = start; i < start + n; ++i) {
+			while(bits < b) {
+				acc |= (buf[pos++] & 0xFFL) << bits;
+				bits += 8;
+			}
+			values[i] = (int) acc & mask;
+			acc >>>= b;
+			bits -= b;
+		}
+		int index = 0;
+		for(int e = 0; e < exceptions; ++e) {
+			index += WritableUtils.readVInt(in);
+			values[start + index] |= WritableUtils.readVInt(in) << b;
+		}
+	}
+}
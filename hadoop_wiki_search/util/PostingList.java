@@ -8,20 +8,48 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableUtils;
 
 public class PostingList implements Writable {
 	/**
 	 * PostingList: posting list of inverted index
+	 * Postings are grouped in blocks of BLOCK_SIZE, each block has a skip entry holding its last
+	 * docId and its maximum score, so that a reader can leap over blocks that cannot match.
+	 * Positions are kept in a separate stream, they are only decoded when a query needs them.
+	 * Binary format: codec, size, the skip entries (last docId gap to the previous block, max
+	 * score), then for each block the docId gaps and tfs encoded by the codec and the scores as
+	 * floats, then the length of the positions stream in bytes and the position gaps of every
+	 * posting encoded by the codec, or a length of -1 when the stream is stored apart: the index
+	 * job writes it to the positions file of the partition (see PositionFiles and
+	 * setPositionsApart), a list read from the index has then no positions until they are
+	 * attached, other writes, like the shuffle, keep the stream after the postings
+	 * a list is read straight into the columns of a ColumnarPostingList (see columns), the form
+	 * the queries and the PostingCache use, the Posting objects are only built when the postings
+	 * are asked for (get, getPosting), for a list built from postings the columns are built when
+	 * first needed and dropped when the list may be modified
 	 * Parameters:
-	 * 	postings: a list of posting
-	 * 	listSep: separator between two postings
+	 * 	postings: a list of posting, null until asked for when the list was read
+	 * 	columns: columns of the list, null until needed when the list was built from postings, new
+	 * 	columns are read by every readFields so that they may be kept while the list is reused
+	 * 	codec: integer encoding used by write, read lists keep the codec they were written with
+	 * 	positionsApart: write leaves the positions stream out, reset by readFields
+	 * 	listSep: separator between two postings in the string form
 	 */
 	
 	private List<Posting> postings;
+	private ColumnarPostingList columns;
+	private PostingCodec codec = PostingCodec.VINT;
+	private boolean positionsApart = false;
+	private DataOutputBuffer positionBuffer;
+	private int[] gapBuffer;
+	private int[] tfBuffer;
+	private PostingCodec.Scratch scratch;
 	
 	public static String listSep = "|";
+	public static final int BLOCK_SIZE = 128;
 	
 	public static class Posting implements Writable, Comparable<Posting> {
 		/**
@@ -30,10 +58,10 @@ public class PostingList implements Writable {
 		 * 	docId: document id
 		 * 	score: score of a term in a document
 		 * 	positions: word positions in the document
-		 * 	sep: separator between above parameters
-		 * 	posSep: separator between two positions
+		 * 	sep: separator between above parameters in the string form
+		 * 	posSep: separator between two positions in the string form
 		 */
-		private String docId;
+		private int docId;
 		private double score;
 		private List<Integer> positions;
 		
@@ -44,14 +72,14 @@ public class PostingList implements Writable {
 			this.positions = new ArrayList<Integer>();
 		}
 		
-		public Posting(String docId, double score, String positions) {
+		public Posting(int docId, double score, String positions) {
 			this.docId = docId;
 			this.score = score;
 			this.positions = new ArrayList<Integer>();
 			for(String pos : positions.split(posSep)) this.positions.add(Integer.valueOf(pos));
 		}
 		
-		public Posting(String docId, double score) {
+		public Posting(int docId, double score) {
 			this.docId = docId;
 			this.score = score;
 			this.positions = new ArrayList<Integer>();
@@ -61,7 +89,7 @@ public class PostingList implements Writable {
 			this.docId = other.docId;
 			this.score = other.score;
 			this.positions = new ArrayList<Integer>();
-			for(Integer pos : other.positions) positions.add(pos);
+			for(Integer pos : other.getPositions()) positions.add(pos);
 		}
 		
 		public Posting(String indexStr) {
@@ -69,7 +97,7 @@ public class PostingList implements Writable {
 			readFromString(indexStr);
 		}
 		
-		public String getDocId() {
+		public int getDocId() {
 			return docId;
 		}
 		
@@ -81,6 +109,10 @@ public class PostingList implements Writable {
 			return positions;
 		}
 		
+		public int getTf() {
+			return positions.size();
+		}
+		
 		
 		public String toString() {
 			StringBuffer sb = new StringBuffer();
@@ -89,7 +121,7 @@ public class PostingList implements Writable {
 			sb.append(String.format("%.03f", score));
 			sb.append(sep);
 			StringBuffer ps = new StringBuffer();
-			for(Integer pos : positions) {
+			for(Integer pos : getPositions()) {
 				if(ps.length() != 0) ps.append(posSep);
 				ps.append(pos);
 			}
@@ -104,7 +136,7 @@ public class PostingList implements Writable {
 			 * 	indexStr: string get from toString() method
 			 */
 			String[] indices = indexStr.split(sep);
-			this.docId = indices[0];
+			this.docId = Integer.parseInt(indices[0]);
 			this.score = Double.parseDouble(indices[1]);
 			// deal with situation there is no positions exist
 			if(indices.length < 3) return;
@@ -112,17 +144,55 @@ public class PostingList implements Writable {
 		}
 		
 		public void readFields(DataInput in) throws IOException {
-			String indexStr = in.readUTF();
-			readFromString(indexStr);
+			/**
+			 * a single posting keeps its positions inline: docId, score, tf, positions
+			 */
+			this.docId = WritableUtils.readVInt(in);
+			this.score = in.readFloat();
+			int tf = WritableUtils.readVInt(in);
+			this.positions = new ArrayList<Integer>(tf);
+			for(int i = 0; i < tf; ++i) positions.add(WritableUtils.readVInt(in));
 		}
-
+		
 		public void write(DataOutput out) throws IOException {
-			out.writeUTF(toString());
+			/**
+			 * positions are already gaps to the previous position
+			 */
+			WritableUtils.writeVInt(out, docId);
+			out.writeFloat((float)score);
+			WritableUtils.writeVInt(out, getTf());
+			for(Integer pos : getPositions()) WritableUtils.writeVInt(out, pos);
 		}
-
+		
 		@Override
 		public int compareTo(Posting other) {
-			return docId.compareTo(other.docId);
+			return Integer.compare(docId, other.docId);
+		}
+	}
+	
+	private static class InlinePositions implements ColumnarPostingList.PositionReader {
+		/**
+		 * InlinePositions: undecoded positions stream of a list, decoded by its columns on first use
+		 */
+		private byte[] bytes;
+		private PostingCodec codec;
+		
+		InlinePositions(byte[] bytes, PostingCodec codec) {
+			this.bytes = bytes;
+			this.codec = codec;
+		}
+		
+		public int[] read(int total) throws IOException {
+			DataInputBuffer in = new DataInputBuffer();
+			in.reset(bytes, bytes.length);
+			int[] gaps = new int[total];
+			// once per list, the lists of a cache may decode their positions on any thread
+			codec.readInts(in, gaps, total, new PostingCodec.Scratch());
+			return gaps;
+		}
+		
+		public long memorySize() {
+			return 32 + bytes.length;
 		}
 	}
 	
@@ -135,8 +205,8 @@ public class PostingList implements Writable {
 	}
 	
 	public PostingList(PostingList other) {
-		this.postings = new ArrayList<Posting>();
-		for(Posting posting : other.postings) postings.add(posting);
+		this.postings = other.postings == null ? null : new ArrayList<Posting>(other.postings);
+		this.columns = other.columns;
 	}
 	
 	public PostingList(String listStr) {
@@ -145,70 +215,220 @@ public class PostingList implements Writable {
 	}
 	
 	public void set(PostingList other) {
-		postings.clear();
-		for(Posting posting : other.postings) postings.add(posting);
+		postings = other.postings == null ? null : new ArrayList<Posting>(other.postings);
+		columns = other.columns;
+	}
+	
+	private List<Posting> postings() {
+		/**
+		 * Output: the postings, built from the columns of a list read from the index
+		 */
+		if(postings != null) return postings;
+		List<Posting> built = new ArrayList<Posting>(columns.size());
+		int[] positions = columns.getPositions();
+		for(int i = 0; i < columns.size(); ++i) {
+			Posting p = new Posting(columns.getDocId(i), columns.getScore(i));
+			if(positions != null)
+				for(int k = columns.getPositionStart(i); k < columns.getPositionEnd(i); ++k) p.positions.add(positions[k]);
+			built.add(p);
+		}
+		postings = built;
+		return postings;
+	}
+	
+	public ColumnarPostingList columns() {
+		/**
+		 * Output: the columns of the list, read with it or built once from the postings, shared, the
+		 * postings must be sorted by docId and must not be modified while the columns are used
+		 */
+		if(columns == null) columns = ColumnarPostingList.of(postings);
+		return columns;
 	}
 	
 	public List<Posting> getPosting() {
+		// the caller may modify the list, rebuild the columns next time they are needed
+		postings();
+		columns = null;
 		return postings;
 	}
 	
 	public void sortPosting() {
-		Collections.sort(postings);
+		Collections.sort(postings());
+		columns = null;
 	}
 	
 	public void sortPostingByScore() {
-		Collections.sort(postings, new Comparator<Posting>(){
+		Collections.sort(postings(), new Comparator<Posting>(){
 			public int compare(Posting p1, Posting p2) {
 				return p1.score == p2.score ? 0 : p1.score < p2.score ? 1 : -1;
 			}
 		});
+		columns = null;
 	}
 	
 	public int size() {
-		return postings.size();
+		return postings != null ? postings.size() : columns.size();
 	}
 	
 	public Posting get(int index) {
-		return postings.get(index);
+		return postings().get(index);
 	}
 	
 	public void addPosting(Posting p) {
-		this.postings.add(p);
+		postings().add(p);
+		columns = null;
 	}
 	
 	public void clear() {
-		this.postings.clear();
+		postings = new ArrayList<Posting>();
+		columns = null;
 	}
 	
 	public void negation() {
-		for(Posting p : postings) p.docId = "-".concat(p.docId);
+		for(Posting p : postings()) p.docId = -p.docId;
+		columns = null;
+	}
+	
+	public PostingCodec getCodec() {
+		return codec;
+	}
+	
+	public void setCodec(PostingCodec codec) {
+		this.codec = codec;
+	}
+	
+	public void setPositionsApart(boolean apart) {
+		/**
+		 * leave the positions out of write, for a writer storing them with writePositions
+		 */
+		this.positionsApart = apart;
+	}
+	
+	void attachPositions(ColumnarPostingList.PositionReader reader) {
+		if(columns != null) columns.attachPositions(reader);
 	}
 	
 	public void readFromString(String listStr) {
-		postings.clear();
+		clear();
 		if(listStr.isEmpty()) return;
 		String listSep = "\\".concat(PostingList.listSep);
 		for(String indexStr : listStr.split(listSep))
 			postings.add(new Posting(indexStr));
 	}
-
+	
 	public void readFields(DataInput in) throws IOException {
-		String listStr = WritableUtils.readCompressedString(in);
-		readFromString(listStr);
+		postings = null;
+		positionsApart = false;
+		codec = PostingCodec.values()[in.readByte()];
+		int size = WritableUtils.readVInt(in);
+		int numBlocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		int[] skipDocIds = new int[numBlocks];
+		float[] skipScores = new float[numBlocks];
+		int last = 0;
+		for(int b = 0; b < numBlocks; ++b) {
+			last += WritableUtils.readVInt(in);
+			skipDocIds[b] = last;
+			skipScores[b] = in.readFloat();
+		}
+		allocateBuffers();
+		int[] docIds = new int[size];
+		float[] scores = new float[size];
+		int[] offsets = new int[size + 1];
+		int docId = 0, total = 0;
+		for(int b = 0; b < numBlocks; ++b) {
+			int start = b * BLOCK_SIZE, n = Math.min(BLOCK_SIZE, size - start);
+			codec.readInts(in, gapBuffer, n, scratch);
+			codec.readInts(in, tfBuffer, n, scratch);
+			for(int i = 0; i < n; ++i) {
+				docId += gapBuffer[i];
+				docIds[start + i] = docId;
+				offsets[start + i] = total;
+				total += tfBuffer[i];
+			}
+			for(int i = 0; i < n; ++i) scores[start + i] = in.readFloat();
+		}
+		offsets[size] = total;
+		// keep the positions as bytes until a query needs them, the ones stored apart are attached
+		int length = WritableUtils.readVInt(in);
+		byte[] positions = length < 0 ? null : new byte[length];
+		if(positions != null) in.readFully(positions);
+		columns = new ColumnarPostingList(size, docIds, scores, skipDocIds, skipScores, offsets,
+				positions == null ? null : new InlinePositions(positions, codec));
 	}
 	
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
-		for(Posting posting : postings) {
+		for(Posting posting : postings()) {
 			if(sb.length() != 0) sb.append(listSep);
 			sb.append(posting);
 		}
 		return sb.toString();
 	}
-
+	
 	public void write(DataOutput out) throws IOException {
-		WritableUtils.writeCompressedString(out, this.toString());
+		/**
+		 * postings must be sorted by docId (see sortPosting) so that the gaps stay small
+		 * the list is written from its columns: each block holds the docId gaps and the tfs encoded
+		 * by the codec, then the scores, the positions are serialized into a buffer first, as their
+		 * length precedes them
+		 */
+		ColumnarPostingList columns = columns();
+		if(positionBuffer == null) positionBuffer = new DataOutputBuffer();
+		allocateBuffers();
+		int size = columns.size(), numBlocks = columns.numBlocks();
+		boolean hasPositions = columns.hasPositions();
+		positionBuffer.reset();
+		
+		out.writeByte(codec.ordinal());
+		WritableUtils.writeVInt(out, size);
+		int last = 0;
+		for(int b = 0; b < numBlocks; ++b) {
+			WritableUtils.writeVInt(out, columns.getBlockLastDocId(b) - last);
+			out.writeFloat(columns.getBlockMaxScore(b));
+			last = columns.getBlockLastDocId(b);
+		}
+		int prev = 0;
+		for(int b = 0; b < numBlocks; ++b) {
+			int first = b * BLOCK_SIZE, n = Math.min(BLOCK_SIZE, size - first);
+			for(int i = 0; i < n; ++i) {
+				int docId = columns.getDocId(first + i);
+				gapBuffer[i] = docId - prev;
+				tfBuffer[i] = hasPositions ? columns.getPositionEnd(first + i) - columns.getPositionStart(first + i) : 0;
+				prev = docId;
+			}
+			codec.writeInts(out, gapBuffer, n, scratch);
+			codec.writeInts(out, tfBuffer, n, scratch);
+			for(int i = 0; i < n; ++i) out.writeFloat((float)columns.getScore(first + i));
+		}
+		if(positionsApart) {
+			WritableUtils.writeVInt(out, -1);
+			return;
+		}
+		writePositions(positionBuffer);
+		WritableUtils.writeVInt(out, positionBuffer.getLength());
+		out.write(positionBuffer.getData(), 0, positionBuffer.getLength());
+	}
+	
+	public void writePositions(DataOutput out) throws IOException {
+		/**
+		 * the positions stream: the positions of all postings form one column encoded by the codec,
+		 * nothing for a list without positions, its tfs are written as 0
+		 */
+		ColumnarPostingList columns = columns();
+		// the start of posting size is the end of the positions
+		if(!columns.hasPositions()) return;
+		allocateBuffers();
+		codec.writeInts(out, columns.getPositions(), columns.getPositionStart(columns.size()), scratch);
+	}
+	
+	private void allocateBuffers() {
+		/**
+		 * buffers of a block, allocated once per list and reused by every read and write
+		 */
+		if(gapBuffer != null) return;
+		gapBuffer = new int[BLOCK_SIZE];
+		tfBuffer = new int[BLOCK_SIZE];
+		scratch = new PostingCodec.Scratch();
 	}
 	
 }
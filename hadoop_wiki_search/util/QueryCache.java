@@ -0,0 +1,316 @@
+package util;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+public class QueryCache implements Closeable {
+	/**
+	 * QueryCache: cache of query results, an LRU map in memory bounded by its size in bytes,
+	 * persisted in an append-only log
+	 * the log is a directory of SequenceFile segments of (query, search result string) named
+	 * log-<time>-<sequence>-<process>, read in name order so later entries win, every process
+	 * appends to its own segment, named with an OPEN_SUFFIX until it is closed, and a background
+	 * thread compacts the segments into one when there are more than "cacheMaxSegments" of them,
+	 * or when the current segment holds more records than there are entries in memory (at least
+	 * COMPACT_RECORDS)
+	 * the log lives in a subdirectory named after the version of the index (the modification
+	 * time of its _SUCCESS file), so publishing a new index build invalidates the cache, the
+	 * version is checked again every "cacheCheckInterval" milliseconds
+	 * compaction only replaces closed segments, a segment another process is still appending to
+	 * is left alone, the records of the closed segments of other processes are copied into the
+	 * compacted one before the entries in memory, so no entry of another writer is lost
+	 * the compactor is a daemon thread, close waits for it
+	 * Parameters:
+	 * 	entries: cached results, in access order
+	 * 	bytes, maxBytes: estimated size of the entries and its bound ("cacheMaxBytes")
+	 * 	writer, segment, segmentRecords: current segment of the log, its path and the number of
+	 * 	records written to it
+	 * 	compactor: thread compacting the log
+	 */
+	private static final String SEGMENT_PREFIX = "log-";
+	private static final String OPEN_SUFFIX = ".open";
+	private static final ThreadFactory DAEMON = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			// a pending compaction must not keep a command line JVM alive
+			Thread thread = new Thread(r, "query-cache-compactor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+	private static final long ENTRY_OVERHEAD = 64;
+	private static final int COMPACT_RECORDS = 1000;
+	
+	private Configuration conf;
+	private FileSystem fs;
+	private Path cacheDir;
+	private Path indexDir;
+	private String version;
+	private Path logDir;
+	private LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>(16, 0.75f, true);
+	private long bytes = 0;
+	private long maxBytes;
+	private int maxSegments;
+	private long checkInterval;
+	private long lastCheck;
+	private SequenceFile.Writer writer;
+	private Path segment;
+	private int sequence = 0;
+	private int segmentRecords = 0;
+	private int id = new Random().nextInt();
+	private ExecutorService compactor = Executors.newSingleThreadExecutor(DAEMON);
+	
+	public QueryCache(Configuration conf, Path cacheDir, Path indexDir) throws IOException {
+		this.conf = conf;
+		this.fs = cacheDir.getFileSystem(conf);
+		this.cacheDir = cacheDir;
+		this.indexDir = indexDir;
+		this.maxBytes = conf.getLong("cacheMaxBytes", 64L << 20);
+		this.maxSegments = conf.getInt("cacheMaxSegments", 8);
+		this.checkInterval = conf.getLong("cacheCheckInterval", 10000);
+		open(indexVersion());
+	}
+	
+	public static String normalize(String query) {
+		/**
+		 * key of a query in the cache, its canonical form (see QueryParser.Query.canonical) so that
+		 * queries differing only in the order of their and/or clauses share an entry, the stop words
+		 * must be loaded into QueryParser.STOP_WORD_SET before
+		 */
+		return new QueryParser().canonicalize(query);
+	}
+	
+	private String indexVersion() throws IOException {
+		Path success = new Path(indexDir, "_SUCCESS");
+		if(fs.exists(success)) return String.valueOf(fs.getFileStatus(success).getModificationTime());
+		return fs.exists(indexDir) ? String.valueOf(fs.getFileStatus(indexDir).getModificationTime()) : "none";
+	}
+	
+	private void open(String version) throws IOException {
+		/**
+		 * drop everything cached for other versions of the index and load the log of this one
+		 */
+		this.version = version;
+		this.logDir = new Path(cacheDir, version);
+		this.lastCheck = System.currentTimeMillis();
+		if(fs.exists(cacheDir))
+			for(FileStatus status : fs.listStatus(cacheDir))
+				if(!status.getPath().getName().equals(version)) fs.delete(status.getPath(), true);
+		fs.mkdirs(logDir);
+		Text key = new Text(), value = new Text();
+		List<Path> segments = segments();
+		for(Path segment : segments) {
+			try(SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(segment))) {
+				while(reader.next(key, value)) cache(key.toString(), value.toString());
+			}catch(IOException e) {
+				// a segment being written by another process may end in a partial record
+			}
+		}
+		if(segments.size() > maxSegments) compact();
+	}
+	
+	private List<Path> segments() throws IOException {
+		List<Path> segments = new ArrayList<Path>();
+		for(FileStatus status : fs.listStatus(logDir))
+			if(status.getPath().getName().startsWith(SEGMENT_PREFIX)) segments.add(status.getPath());
+		Path[] sorted = segments.toArray(new Path[segments.size()]);
+		Arrays.sort(sorted);
+		return Arrays.asList(sorted);
+	}
+	
+	private Path newSegment(long time, int sequence) {
+		return new Path(logDir, String.format("%s%013d-%05d-%08x", SEGMENT_PREFIX, time, sequence, id));
+	}
+	
+	private boolean isOwn(Path segment) {
+		String name = segment.getName();
+		if(name.endsWith(OPEN_SUFFIX)) name = name.substring(0, name.length() - OPEN_SUFFIX.length());
+		return name.endsWith(String.format("-%08x", id));
+	}
+	
+	private void closeSegment() throws IOException {
+		/**
+		 * close the current segment and drop its OPEN_SUFFIX, compactions may then replace it
+		 */
+		if(writer == null) return;
+		writer.close();
+		writer = null;
+		String name = segment.getName();
+		fs.rename(segment, new Path(logDir, name.substring(0, name.length() - OPEN_SUFFIX.length())));
+		segment = null;
+	}
+	
+	private void cache(String query, String result) {
+		/**
+		 * put an entry in memory and evict the least recently used ones above maxBytes
+		 */
+		String old = entries.put(query, result);
+		if(old != null) bytes -= weight(query, old);
+		bytes += weight(query, result);
+		Iterator<Map.Entry<String, String>> it = entries.entrySet().iterator();
+		while(bytes > maxBytes && it.hasNext()) {
+			Map.Entry<String, String> eldest = it.next();
+			bytes -= weight(eldest.getKey(), eldest.getValue());
+			it.remove();
+		}
+	}
+	
+	private static long weight(String query, String result) {
+		return 2 * (query.length() + result.length()) + ENTRY_OVERHEAD;
+	}
+	
+	private void checkVersion() throws IOException {
+		if(System.currentTimeMillis() - lastCheck < checkInterval) return;
+		lastCheck = System.currentTimeMillis();
+		String current = indexVersion();
+		if(current.equals(version)) return;
+		// a new index was published
+		waitCompaction();
+		closeSegment();
+		entries.clear();
+		bytes = 0;
+		compactor = Executors.newSingleThreadExecutor(DAEMON);
+		open(current);
+	}
+	
+	public synchronized SearchResult get(String query) throws IOException {
+		/**
+		 * Output: cached result of the query, null if it is not cached
+		 */
+		checkVersion();
+		String result = entries.get(normalize(query));
+		if(result == null) return null;
+		SearchResult ret = new SearchResult();
+		ret.readFromString(result);
+		return ret;
+	}
+	
+	public synchronized void put(String query, String result) throws IOException {
+		/**
+		 * cache a result and append it to the log
+		 */
+		checkVersion();
+		append(query, result);
+		// a compaction closes the segment
+		if(writer != null) writer.hflush();
+	}
+	
+	private void append(String query, String result) throws IOException {
+		query = normalize(query);
+		cache(query, result);
+		if(writer == null) {
+			segment = newSegment(System.currentTimeMillis(), sequence++).suffix(OPEN_SUFFIX);
+			writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(segment),
+					SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(Text.class));
+		}
+		writer.append(new Text(query), new Text(result));
+		if(++segmentRecords > Math.max(COMPACT_RECORDS, entries.size())) compact();
+	}
+	
+	public synchronized int load(Path results) throws IOException {
+		/**
+		 * put the results of a batch query job, the output folder of the job (its part-r-* MapFiles),
+		 * a single MapFile or a SequenceFile of (query, result), the log is flushed once at the end
+		 * Output: number of results read
+		 */
+		checkVersion();
+		List<Path> files = new ArrayList<Path>();
+		if(!fs.getFileStatus(results).isDirectory()) files.add(results);
+		else if(fs.exists(new Path(results, MapFile.DATA_FILE_NAME))) files.add(new Path(results, MapFile.DATA_FILE_NAME));
+		else
+			for(FileStatus status : fs.listStatus(results))
+				if(status.getPath().getName().startsWith("part-"))
+					files.add(status.isDirectory() ? new Path(status.getPath(), MapFile.DATA_FILE_NAME) : status.getPath());
+		int count = 0;
+		Text key = new Text(), value = new Text();
+		for(Path file : files) {
+			try(SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file))) {
+				while(reader.next(key, value)) {
+					append(key.toString(), value.toString());
+					count++;
+				}
+			}
+		}
+		if(writer != null) writer.hflush();
+		return count;
+	}
+	
+	private synchronized void compact() throws IOException {
+		/**
+		 * roll the current segment and write the records of the closed segments of other processes
+		 * then the entries in memory into a segment sorted before the new one, the closed segments
+		 * are then deleted, all in the background
+		 */
+		closeSegment();
+		segmentRecords = 0;
+		final List<Path> old = new ArrayList<Path>();
+		for(Path path : segments()) if(!path.getName().endsWith(OPEN_SUFFIX)) old.add(path);
+		long now = System.currentTimeMillis();
+		final Path compacted = newSegment(now, 0);
+		sequence = 1;
+		final Path tmp = new Path(logDir, "_" + compacted.getName());
+		final List<Map.Entry<String, String>> snapshot = new ArrayList<Map.Entry<String, String>>(entries.entrySet());
+		compactor.execute(new Runnable() {
+			public void run() {
+				try {
+					try(SequenceFile.Writer out = SequenceFile.createWriter(conf, SequenceFile.Writer.file(tmp),
+							SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(Text.class))) {
+						// the segments of other processes may hold entries never read into memory
+						Text key = new Text(), value = new Text();
+						for(Path path : old) {
+							if(isOwn(path)) continue;
+							try(SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path))) {
+								while(reader.next(key, value)) out.append(key, value);
+							}catch(FileNotFoundException e) {
+								// already compacted by its own process
+							}
+						}
+						for(Map.Entry<String, String> entry : snapshot) out.append(new Text(entry.getKey()), new Text(entry.getValue()));
+					}
+					fs.rename(tmp, compacted);
+					for(Path path : old) fs.delete(path, false);
+				}catch(IOException e) {
+					// the old segments are kept, the next compaction retries
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+	
+	private void waitCompaction() {
+		compactor.shutdown();
+		try {
+			compactor.awaitTermination(1, TimeUnit.MINUTES);
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	public synchronized void close() throws IOException {
+		waitCompaction();
+		closeSegment();
+	}
+}
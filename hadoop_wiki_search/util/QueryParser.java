@@ -20,13 +20,19 @@ package util;
  * treated as a phrase. Fixed by checking whether or terms are start with not, if yes, query after that not
  * cannot be a phrase (can only be a word).
  */
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import util.PostingList.Posting;
 
@@ -40,16 +46,54 @@ public class QueryParser {
 	 * not and phrase are the hardest part and wait for design
 	 */
 	public static final Set<String> STOP_WORD_SET = new HashSet<String>();
+	//Sampled instrumentation of the set operations, see setTracer
+	private static volatile Tracer tracer;
+	private static int traceEvery;
+	private static final AtomicLong operations = new AtomicLong();
 	//This property is used for adjust the influence of distance of words to the score of a document
 	//Lower: distance will affect more; higher: distance will affect less
 	private static double phraseFactor = 1.0;
+	public interface Tracer {
+		/**
+		 * Tracer: receives one set operation out of every sampleEvery of setTracer
+		 * Input:
+		 * 	operation: intersect, intersectN (N lists), difference or merge
+		 * 	size1, size2: sizes of the operands (the shortest and the longest list for intersectN)
+		 * 	result: size of the result
+		 * 	nanos: duration of the operation
+		 */
+		void trace(String operation, int size1, int size2, int result, long nanos);
+	}
+	
+	public static void setTracer(Tracer tracer, int sampleEvery) {
+		/**
+		 * trace one set operation out of sampleEvery, null to stop tracing, without a tracer the
+		 * kernels only read a volatile field per operation
+		 */
+		traceEvery = Math.max(1, sampleEvery);
+		QueryParser.tracer = tracer;
+	}
+	
+	private static long startTrace() {
+		/**
+		 * Output: start time of an operation to trace, 0 when it is not sampled
+		 */
+		if(tracer == null || operations.incrementAndGet() % traceEvery != 0) return 0;
+		return System.nanoTime();
+	}
+	
+	private static void trace(String operation, int size1, int size2, int result, long start) {
+		Tracer t = tracer;
+		if(t != null) t.trace(operation, size1, size2, result, System.nanoTime() - start);
+	}
+	
 	/**
 	 * AND: A and B
 	 * OR: A or B
 	 * NOT_OR: not(A or B)
 	 * TERM/NOT_TERM: leaf node, TERM->the result documents should contain the term, NOT_TERM->result should not contain the term
 	 */
-	private enum Expr {
+	enum Expr {
 		
 		AND, OR, NOT_OR, WORD, EXCEPT_WORD, STOP_WORD;
 	}
@@ -58,12 +102,12 @@ public class QueryParser {
 	 * neg: whether the document in the posting list should be in the result
 	 *      true: should not appear
 	 *      false: should appear
-	 * list: a list of documents id and scores
+	 * list: a list of documents id and scores, as primitive columns
 	 */
 	public static class PostingListWrapper {
 		int type;//0 : normal; 1 : negative; 2: stop word
-		public PostingList list;
-		PostingListWrapper(int neg, PostingList list) {
+		public ColumnarPostingList list;
+		PostingListWrapper(int neg, ColumnarPostingList list) {
 			this.type = neg;
 			this.list = list;
 		}
@@ -94,34 +138,208 @@ public class QueryParser {
 		}
 		
 		public PostingListWrapper evaluate(Map<String, PostingList> terms) {
+			return evaluate(terms, null);
+		}
+		
+		public PostingListWrapper evaluate(Map<String, PostingList> terms, SubExpressionCache cache) {
+			return evaluate(columns(terms), cache, Long.MAX_VALUE);
+		}
+		
+		public PostingListWrapper evaluateColumns(Map<String, ColumnarPostingList> leaves) {
+			/**
+			 * evaluate the query on the columns of the lists, e.g. those of a PostingCache or the
+			 * slices of a docId range, a word missing from leaves has no posting
+			 */
+			return evaluate(leaves, null, Long.MAX_VALUE);
+		}
+		
+		private Map<String, ColumnarPostingList> columns(Map<String, PostingList> terms) {
+			// the columns of a list are the ones it was read into, or built once and kept by the list
+			Map<String, ColumnarPostingList> leaves = new HashMap<String, ColumnarPostingList>();
+			for(String word : words()) {
+				PostingList list = terms.get(word);
+				if(list != null) leaves.put(word, list.columns());
+			}
+			return leaves;
+		}
+		
+		public PostingListWrapper evaluate(Map<String, PostingList> terms, SubExpressionCache cache, ForkJoinPool pool, long cutoff) {
+			return evaluateColumns(columns(terms), cache, pool, cutoff);
+		}
+		
+		public PostingListWrapper evaluateColumns(final Map<String, ColumnarPostingList> leaves, final SubExpressionCache cache,
+				ForkJoinPool pool, final long cutoff) {
+			/**
+			 * parallel evaluation in pool: the children of a node and the halves of doOr whose lists
+			 * hold at least cutoff postings in total are evaluated as ForkJoin tasks, smaller ones
+			 * sequentially, the result is the one of evaluate(terms, cache) as every set operation is
+			 * done on the same operands in the same order, only on other threads
+			 * without a pool the query is evaluated sequentially
+			 */
+			if(pool == null) return evaluate(leaves, cache, Long.MAX_VALUE);
+			return pool.invoke(ForkJoinTask.adapt(new Callable<PostingListWrapper>() {
+				public PostingListWrapper call() {
+					return evaluate(leaves, cache, Math.max(1, cutoff));
+				}
+			}));
+		}
+		
+		private long cost(Map<String, ColumnarPostingList> leaves) {
+			/**
+			 * Output: total size of the posting lists of the leaves
+			 */
+			if(expr == Expr.WORD || expr == Expr.EXCEPT_WORD) {
+				ColumnarPostingList list = leaves.get(word);
+				return list == null ? 0 : list.size();
+			}
+			long cost = 0;
+			if(next != null) for(Query child : next) cost += child.cost(leaves);
+			return cost;
+		}
+		
+		private PostingListWrapper evaluate(final Map<String, ColumnarPostingList> leaves, final SubExpressionCache cache, final long cutoff) {
 			/**
 			 * if expr == NOT_WORD / WORD, leaf nodes, create PostingListWrapper object according to the Expr type with type 1 and 0
+			 * around the columns of the word, shared by its leaves and never modified
 			 * otherwise, recursively evaluate the expression
 			 * if expr == STOP_WORD, return a new PostingListWrapper with type 2
+			 * with a cache, the result of every inner node is looked up by its canonical form first
+			 * and offered to the cache with the size of its inputs once computed
+			 * the children costing at least cutoff postings are forked, Long.MAX_VALUE when the
+			 * evaluation is sequential, the last child is always evaluated by the current thread
 			 */
-			if(expr == Expr.WORD) return new PostingListWrapper(0, terms.getOrDefault(word, new PostingList()));
-			else if(expr == Expr.EXCEPT_WORD) return new PostingListWrapper(1, terms.getOrDefault(word, new PostingList()));
-			else if(expr == Expr.STOP_WORD) return new PostingListWrapper(2, new PostingList());
+			if(expr == Expr.WORD) return new PostingListWrapper(0, leaves.getOrDefault(word, new ColumnarPostingList()));
+			else if(expr == Expr.EXCEPT_WORD) return new PostingListWrapper(1, leaves.getOrDefault(word, new ColumnarPostingList()));
+			else if(expr == Expr.STOP_WORD) return new PostingListWrapper(2, new ColumnarPostingList());
+			String key = cache != null ? canonical() : null;
+			if(key != null && key.isEmpty()) key = null;
+			if(key != null) {
+				PostingListWrapper cached = cache.get(key);
+				if(cached != null) return cached;
+			}
 			int n = next.length;
+			final PostingListWrapper[] pList = new PostingListWrapper[n];
+			List<ForkJoinTask<?>> forked = new ArrayList<ForkJoinTask<?>>();
+			for(int i = 0; i < next.length; ++i) {
+				final int child = i;
+				if(i < n - 1 && cutoff < Long.MAX_VALUE && next[i].next != null && next[i].cost(leaves) >= cutoff)
+					forked.add(ForkJoinTask.adapt(new Runnable() {
+						public void run() {
+							pList[child] = next[child].evaluate(leaves, cache, cutoff);
+						}
+					}).fork());
+				else pList[i] = next[i].evaluate(leaves, cache, cutoff);
+			}
+			for(ForkJoinTask<?> task : forked) task.join();
+			long inputs = 0;
+			for(PostingListWrapper wrapper : pList) inputs += wrapper.list.size();
+			PostingListWrapper ans = combine(pList, cutoff);
+			// the parent may change the type of the wrapper it gets, the cache keeps its own
+			if(key != null && ans != null) cache.offer(key, new PostingListWrapper(ans.type, ans.list), inputs);
+			return ans;
+		}
+		
+		PostingListWrapper combine(PostingListWrapper[] pList) {
+			/**
+			 * combine the results of the children of an inner node, given in the order of the
+			 * children, for QueryPlanner which evaluates them itself
+			 */
+			return combine(pList, Long.MAX_VALUE);
+		}
+		
+		private PostingListWrapper combine(PostingListWrapper[] pList, long cutoff) {
+			int n = pList.length;
+			PostingListWrapper ans;
 			if(expr == Expr.OR || expr == Expr.NOT_OR) {
-				PostingListWrapper[] pList = new PostingListWrapper[n];
-				for(int i = 0; i < next.length; ++i) pList[i] = next[i].evaluate(terms);
-				PostingListWrapper ans = doOr(pList, 0, n - 1);
+				ans = doOr(pList, 0, n - 1, cutoff);
 				if(expr == Expr.NOT_OR) ans.type = 1 - ans.type;
-				return ans;
 			}else if(expr == Expr.AND) {
-				PostingListWrapper[] pList = new PostingListWrapper[n];
-				for(int i = 0; i < next.length; ++i)
-					pList[i] = next[i].evaluate(terms);
-				PostingListWrapper wrapper = doAnd(pList, 0, n - 1);
-				return wrapper;
+				ans = doAnd(pList, 0, n - 1);
+			}else return null;
+			return ans;
+		}
+		
+		Expr expr() {
+			return expr;
+		}
+		
+		String word() {
+			return word;
+		}
+		
+		Query[] children() {
+			/**
+			 * Output: the children of an inner node, null for a leaf
+			 */
+			return next;
+		}
+		
+		public Set<String> words() {
+			/**
+			 * return the words of every leaf whose posting list the evaluation needs
+			 */
+			Set<String> words = new HashSet<String>();
+			if(expr == Expr.WORD || expr == Expr.EXCEPT_WORD) words.add(word);
+			else if(next != null) for(Query child : next) words.addAll(child.words());
+			return words;
+		}
+		
+		public String canonical() {
+			/**
+			 * return the canonical form of the query, equal for queries evaluated the same way,
+			 * used as the key of the query caches: terms are stemmed by the parser, stop words are
+			 * dropped, the clauses of AND and OR are sorted (the scores of clauses commute) and only
+			 * the parentheses around an or clause in a conjunction are kept, e.g. "(vanilla) and
+			 * cakes" and "cake and vanilla" are both "cake and vanilla"
+			 * the words of a phrase keep their order: doAnd sorts them by size, stably, and only the
+			 * first pair gets the proximity boost, so with equal sizes "lion bird fish" and "fish
+			 * lion bird" score differently
+			 */
+			if(expr == Expr.WORD) return word;
+			else if(expr == Expr.EXCEPT_WORD) return "not " + word;
+			else if(expr == Expr.STOP_WORD) return "";
+			List<String> children = new ArrayList<String>();
+			for(Query child : next) {
+				String c = child.canonical();
+				if(!c.isEmpty()) children.add(c);
+			}
+			if(expr == Expr.AND && (next.length == 0 || next[0].next == null)) return String.join(" ", children);
+			Collections.sort(children);
+			if(expr == Expr.AND) {
+				for(int i = 0; i < children.size(); ++i)
+					if(children.size() > 1 && children.get(i).contains(" or ") && !children.get(i).startsWith("not ("))
+						children.set(i, "(" + children.get(i) + ")");
+				return String.join(" and ", children);
 			}
-			return null;
+			String or = String.join(" or ", children);
+			if(expr == Expr.OR) return or;
+			// a negated clause of stop words only is kept, its evaluation differs from no clause
+			return children.size() == 1 && !or.contains(" ") ? "not " + or : "not (" + or + ")";
 		}
 		
-		private PostingListWrapper intersect(PostingListWrapper pList1, PostingListWrapper pList2) {
+		public List<String> disjunctionTerms() {
+			/**
+			 * return the terms if the query is a plain disjunction of words (A or B or ...), whose
+			 * score is the sum of the term scores and can be evaluated by TopKEvaluator,
+			 * null for any other query
+			 */
+			if(expr != Expr.AND || next.length != 1 || next[0].expr != Expr.OR) return null;
+			List<String> words = new ArrayList<String>();
+			for(Query clause : next[0].next) {
+				// phrases and negated words are scored differently
+				if(clause.expr != Expr.AND || clause.next.length != 1) return null;
+				Query leaf = clause.next[0];
+				if(leaf.expr == Expr.STOP_WORD) continue;
+				if(leaf.expr != Expr.WORD) return null;
+				words.add(leaf.word);
+			}
+			return words;
+		}
+		
+		private PostingListWrapper intersect(PostingListWrapper pList1, PostingListWrapper pList2, boolean reuse) {
+			//reuse: the list of pList1 is an intermediate result of the caller, it may be overwritten
 			//if both of the two words are stop words, return a empty PostingListWrapper with type 2
-			if(pList1.type == 2 && pList2.type == 2) return new PostingListWrapper(2, new PostingList());
+			if(pList1.type == 2 && pList2.type == 2) return new PostingListWrapper(2, new ColumnarPostingList());
 			else if(pList1.type == 2) {//if the first word is stop word, return the PostingListWrapper of the second word
 				return pList2;
 			}
@@ -131,11 +349,11 @@ public class QueryParser {
 			else if(pList1.type == 1 && pList2.type == 1) //-A and -B -> -(A merge B)
 				return new PostingListWrapper(1, merge(pList1.list, pList2.list));
 			else if(pList1.type == 0 && pList2.type == 0)//A and B -> A intersect B
-				return new PostingListWrapper(0, intersect(pList1.list, pList2.list));
+				return new PostingListWrapper(0, intersect(pList1.list, pList2.list, reuse ? pList1.list : null));
 			else if(pList1.type == 1)//-A and B -> B - A
-				return new PostingListWrapper(0, difference(pList2.list, pList1.list));
+				return new PostingListWrapper(0, difference(pList2.list, pList1.list, null));
 			else// A and -B -> A - B
-				return new PostingListWrapper(0, difference(pList1.list, pList2.list));
+				return new PostingListWrapper(0, difference(pList1.list, pList2.list, reuse ? pList1.list : null));
 		}
 		
 		/**
@@ -146,117 +364,182 @@ public class QueryParser {
 		 * @return
 		 */
 		private PostingListWrapper doAnd(PostingListWrapper[] pList, int low, int high) {
-			if(low > high) return new PostingListWrapper(0, new PostingList());
-			if(low == high) {
-				PostingList ans = new PostingList();
-				PostingList org = pList[low].list;
-				for(int i = 0; i < org.size(); ++i) {
-					Posting p = org.get(i);
-					ans.addPosting(new Posting(p.getDocId(), p.getScore()));
-				}
-				return new PostingListWrapper(pList[low].type, ans);
-			}
+			if(low > high) return new PostingListWrapper(0, new ColumnarPostingList());
+			// a single operand is passed on without its positions, the columns are shared
+			if(low == high) return new PostingListWrapper(pList[low].type, pList[low].list.withoutPositions());
 			Arrays.sort(pList, new Comparator<PostingListWrapper>(){
 				@Override
 				public int compare(PostingListWrapper o1, PostingListWrapper o2) {
 					return o1.list.size() - o2.list.size();
 				}
 			});
+			// three or more plain lists (stop words aside) are intersected together from the shortest
+			List<ColumnarPostingList> lists = new ArrayList<ColumnarPostingList>();
+			for(PostingListWrapper wrapper : pList) {
+				if(wrapper.type == 0) lists.add(wrapper.list);
+				else if(wrapper.type != 2) lists = null;
+				if(lists == null) break;
+			}
+			if(lists != null && lists.size() > 2)
+				return new PostingListWrapper(0, intersect(lists.toArray(new ColumnarPostingList[lists.size()])));
+			// the results of the fold after the first step are its own, they are intersected in place
 			PostingListWrapper ans = pList[0];
+			boolean owned = false;
 			for(int i = 1; i < pList.length; ++i){
-				ans = intersect(ans, pList[i]);
+				PostingListWrapper next = intersect(ans, pList[i], owned);
+				owned = next.list == ans.list ? owned : next.list != pList[i].list;
+				ans = next;
 			}
-				
+			
 			return ans;
 		}
 		
-		private PostingList difference(PostingList pList1, PostingList pList2) {
-			PostingList ans = new PostingList();
-			for(int i = 0, j = 0; i < pList1.size();) {
-				if(j == pList2.size()) {
-					Posting p = pList1.get(i++);
-					ans.addPosting(new Posting(p.getDocId(), p.getScore()));
-				}else {
-					Posting left = pList1.get(i), right = pList2.get(j);
-					int cmp = left.getDocId().compareTo(right.getDocId());
-					if(cmp < 0) {
-						ans.addPosting(new Posting(left.getDocId(), left.getScore()));
-						++i;
-					}else if(cmp > 0) ++j;
-					else {
-						++i; ++j;
-					}
+		/**
+		 * the kernels below write into out, a new list when it is null, out may be pList1 itself:
+		 * they never write a posting before the last one read, pList1 is then read up to its
+		 * original size
+		 */
+		private ColumnarPostingList difference(ColumnarPostingList pList1, ColumnarPostingList pList2, ColumnarPostingList out) {
+			/**
+			 * the runs of pList1 between two docIds of pList2 are found by galloping and copied at once
+			 */
+			long start = startTrace();
+			int n1 = pList1.size(), n2 = pList2.size();
+			ColumnarPostingList ans = out != null ? out : new ColumnarPostingList(n1);
+			ans.clear();
+			for(int i = 0, j = 0; i < n1;) {
+				if(j == n2) {
+					ans.addRange(pList1, i, n1);
+					break;
 				}
+				int right = pList2.getDocId(j);
+				int k = pList1.advance(i, n1, right);
+				ans.addRange(pList1, i, k);
+				i = k;
+				if(i == n1) break;
+				int left = pList1.getDocId(i);
+				if(left == right) {
+					++i; ++j;
+				}else j = pList2.advance(j + 1, n2, left);
 			}
+			if(start != 0) trace("difference", n1, n2, ans.size(), start);
 			return ans;
 		}
 		
-		private PostingList intersect(PostingList pList1, PostingList pList2) {
-			PostingList ans = new PostingList();
-			for(int i = 0, j = 0; i < pList1.size() && j < pList2.size();) {
-				Posting left = pList1.get(i), right = pList2.get(j);
-				System.out.println("left " + left + "; right " + right);
-				int cmp = left.getDocId().compareTo(right.getDocId());
-				if(cmp < 0) ++i;
-				else if(cmp > 0) ++j;
+		private ColumnarPostingList intersect(ColumnarPostingList pList1, ColumnarPostingList pList2, ColumnarPostingList out) {
+			long start = startTrace();
+			int n1 = pList1.size(), n2 = pList2.size();
+			ColumnarPostingList ans = out != null ? out : new ColumnarPostingList(Math.min(n1, n2));
+			ans.clear();
+			for(int i = 0, j = 0; i < n1 && j < n2;) {
+				int left = pList1.getDocId(i), right = pList2.getDocId(j);
+				// leap over the postings before the other list's docId
+				if(left < right) i = pList1.advance(i + 1, n1, right);
+				else if(left > right) j = pList2.advance(j + 1, n2, left);
 				else {
-					System.out.println("i " + i + "; j" + j);
-					/**
-					 * Calculate the minimum distance of two words in a document
-					 */
-					List<Integer> positions1 = pList1.get(i).getPositions(), positions2 = pList2.get(j).getPositions();
-					int minDis = Integer.MAX_VALUE;
-					if(positions1 != null && positions2 != null && positions1.size() > 0 && positions2.size() > 0) {
-						int p1 = positions1.get(0), p2 = positions2.get(0);for(int p = 1, q = 1; p < positions1.size() && q < positions2.size();) {	
-							/**
-							 * only calculate possible nearest positions:
-							 * in doc1:
-							 * word1: 1 3 4 5 10 11
-							 * word2: 7 12
-							 * 1 3 4 should not be computed, because 5 is the only possible candidate.
-							 */
-							if(p1 < p2) {
-								p++;
-								while(p < positions1.size() && p1 < p2) {
-									p1 = p1 + positions1.get(p);
-									p++;
-								}
-								if(p < positions1.size()) {
-									p--;
-									p1 = p1 + positions1.get(p);
-								}
-								minDis = Math.min(minDis, Math.abs(p1 - p2));
-								p++;
-							}
-							else if(p1 > p2) {
-								q++;
-								while(q < positions2.size() && p2 < p1) {
-									p2 = p2 + positions2.get(q);
-									q++;
-								}
-								if(q < positions2.size()) {
-									q--;
-									p2 = p2 + positions2.get(q);
-								}
-								minDis = Math.min(minDis, Math.abs(p1 - p2));
-								q++;
-							}
-							else{
-								p++;
-								q++;
-							}
-						}
-					}					
-					if(minDis != Integer.MAX_VALUE)
-						ans.addPosting(new Posting(left.getDocId(), Math.pow(left.getScore() * right.getScore(), phraseFactor + 1.0 / minDis)));
-					else 
-						ans.addPosting(new Posting(left.getDocId(), left.getScore() * right.getScore()));
+					ans.add(left, score(pList1, i, pList2, j));
 					++i; ++j;
 				}
 			}
+			if(start != 0) trace("intersect", n1, n2, ans.size(), start);
 			return ans;
 		}
-
+		
+		private ColumnarPostingList intersect(ColumnarPostingList[] lists) {
+			/**
+			 * intersect lists sorted by increasing size: every docId of the shortest list is looked
+			 * for in the others by galloping, a docId missing from one of them moves the shortest list
+			 * to the docId found there, the scores are combined in the order of the lists like the
+			 * pairwise intersections of doAnd, the first pair with its positions
+			 */
+			long start = startTrace();
+			ColumnarPostingList first = lists[0];
+			int[] at = new int[lists.length];
+			ColumnarPostingList ans = new ColumnarPostingList(first.size());
+			candidates: while(at[0] < first.size()) {
+				int docId = first.getDocId(at[0]);
+				for(int k = 1; k < lists.length; ++k) {
+					at[k] = lists[k].advance(at[k], docId);
+					if(at[k] == lists[k].size()) break candidates;
+					int found = lists[k].getDocId(at[k]);
+					if(found != docId) {
+						at[0] = first.advance(at[0] + 1, found);
+						continue candidates;
+					}
+				}
+				double score = score(first, at[0], lists[1], at[1]);
+				for(int k = 2; k < lists.length; ++k) score *= lists[k].getScore(at[k]);
+				ans.add(docId, score);
+				for(int k = 0; k < lists.length; ++k) ++at[k];
+			}
+			if(start != 0) trace("intersect" + lists.length, first.size(), lists[lists.length - 1].size(), ans.size(), start);
+			return ans;
+		}
+		
+		private static double score(ColumnarPostingList pList1, int i, ColumnarPostingList pList2, int j) {
+			/**
+			 * score of a document in both lists, the product of its scores raised by the proximity
+			 * of the two words when both lists have positions (a phrase)
+			 */
+			int minDis = Integer.MAX_VALUE;
+			if(pList1.hasPositions() && pList2.hasPositions())
+				minDis = minDistance(pList1.getPositions(), pList1.getPositionStart(i), pList1.getPositionEnd(i),
+						pList2.getPositions(), pList2.getPositionStart(j), pList2.getPositionEnd(j));
+			double score = pList1.getScore(i) * pList2.getScore(j);
+			return minDis != Integer.MAX_VALUE ? Math.pow(score, phraseFactor + 1.0 / minDis) : score;
+		}
+		
+		private static int minDistance(int[] positions1, int start1, int end1, int[] positions2, int start2, int end2) {
+			/**
+			 * Calculate the minimum distance of two words in a document, from their position gaps
+			 * positions1[start1, end1) and positions2[start2, end2)
+			 */
+			int size1 = end1 - start1, size2 = end2 - start2;
+			int minDis = Integer.MAX_VALUE;
+			if(size1 == 0 || size2 == 0) return minDis;
+			int p1 = positions1[start1], p2 = positions2[start2];
+			for(int p = 1, q = 1; p < size1 && q < size2;) {
+				/**
+				 * only calculate possible nearest positions:
+				 * in doc1:
+				 * word1: 1 3 4 5 10 11
+				 * word2: 7 12
+				 * 1 3 4 should not be computed, because 5 is the only possible candidate.
+				 */
+				if(p1 < p2) {
+					p++;
+					while(p < size1 && p1 < p2) {
+						p1 = p1 + positions1[start1 + p];
+						p++;
+					}
+					if(p < size1) {
+						p--;
+						p1 = p1 + positions1[start1 + p];
+					}
+					minDis = Math.min(minDis, Math.abs(p1 - p2));
+					p++;
+				}
+				else if(p1 > p2) {
+					q++;
+					while(q < size2 && p2 < p1) {
+						p2 = p2 + positions2[start2 + q];
+						q++;
+					}
+					if(q < size2) {
+						q--;
+						p2 = p2 + positions2[start2 + q];
+					}
+					minDis = Math.min(minDis, Math.abs(p1 - p2));
+					q++;
+				}
+				else{
+					p++;
+					q++;
+				}
+			}
+			return minDis;
+		}
+		
 		/**
 		 * Handle all the expressions connected with "and"
 		 * @param pList Handle all the expressions connected with "or"
@@ -264,23 +547,25 @@ public class QueryParser {
 		 * @param high end index of the pList
 		 * @return
 		 */
-		private PostingListWrapper doOr(PostingListWrapper[] pList, int low, int high) {
-			if(low == high) {
-				PostingList ans = new PostingList();
-				PostingList org = pList[low].list;
-				for(int i = 0; i < org.size(); ++i) {
-					Posting p = org.get(i);
-					ans.addPosting(new Posting(p.getDocId(), p.getScore()));
+		private PostingListWrapper doOr(final PostingListWrapper[] pList, final int low, int high, final long cutoff) {
+			if(low == high) return new PostingListWrapper(pList[low].type, pList[low].list.withoutPositions());
+			final int mid = low + (high - low)/2;
+			long size = 0;
+			for(int i = low; i <= high && size < cutoff; ++i) size += pList[i].list.size();
+			if(size < cutoff) return merge(doOr(pList, low, mid, cutoff), doOr(pList, mid + 1, high, cutoff));
+			// the first half is forked, the second one evaluated by this thread
+			ForkJoinTask<PostingListWrapper> left = ForkJoinTask.adapt(new Callable<PostingListWrapper>() {
+				public PostingListWrapper call() {
+					return doOr(pList, low, mid, cutoff);
 				}
-				return new PostingListWrapper(pList[low].type, ans);
-			}
-			int mid = low + (high - low)/2;
-			return merge(doOr(pList, low, mid), doOr(pList, mid + 1, high));
+			}).fork();
+			PostingListWrapper right = doOr(pList, mid + 1, high, cutoff);
+			return merge(left.join(), right);
 		}
 		
 		private PostingListWrapper merge(PostingListWrapper pList1, PostingListWrapper pList2) {
 			//if both of the two words are stop words, return a empty PostingListWrapper with type 2
-			if(pList1.type == 2 && pList2.type == 2) return new PostingListWrapper(2, new PostingList());
+			if(pList1.type == 2 && pList2.type == 2) return new PostingListWrapper(2, new ColumnarPostingList());
 			else if(pList1.type == 2) {//if the first word is stop word, return the PostingListWrapper of the second word
 				return pList2;
 			}
@@ -288,39 +573,40 @@ public class QueryParser {
 				return pList1;
 			}
 			else if(pList1.type == 1 && pList2.type == 1) //-A or -B -> -(A and B)
-				return new PostingListWrapper(1, intersect(pList1.list, pList2.list));
+				return new PostingListWrapper(1, intersect(pList1.list, pList2.list, null));
 			else if(pList1.type == 0 && pList2.type == 0)//A or B -> A merge B
 				return new PostingListWrapper(0, merge(pList1.list, pList2.list));
 			else if(pList1.type == 1)//-A or B -> -(A difference B)
-				return new PostingListWrapper(1, difference(pList1.list, pList2.list));
+				return new PostingListWrapper(1, difference(pList1.list, pList2.list, null));
 			else// A or -B -> -(B difference A)
-				return new PostingListWrapper(1, difference(pList2.list, pList1.list));
+				return new PostingListWrapper(1, difference(pList2.list, pList1.list, null));
 		}
 		
-		private PostingList merge(PostingList pList1, PostingList pList2) {
-			PostingList ans = new PostingList();
+		private ColumnarPostingList merge(ColumnarPostingList pList1, ColumnarPostingList pList2) {
+			long start = startTrace();
+			ColumnarPostingList ans = new ColumnarPostingList(pList1.size() + pList2.size());
 			for(int i = 0, j = 0; i < pList1.size() || j < pList2.size();) {
 				if(i == pList1.size()) {
-					Posting p = pList2.get(j++);
-					ans.addPosting(new Posting(p.getDocId(), p.getScore()));
+					ans.add(pList2.getDocId(j), pList2.getScore(j));
+					++j;
 				}else if(j == pList2.size()) {
-					Posting p = pList1.get(i++);
-					ans.addPosting(new Posting(p.getDocId(), p.getScore()));
+					ans.add(pList1.getDocId(i), pList1.getScore(i));
+					++i;
 				}else {
-					Posting left = pList1.get(i), right = pList2.get(j);
-					int cmp = left.getDocId().compareTo(right.getDocId());
-					if(cmp < 0) {
-						ans.addPosting(new Posting(left.getDocId(), left.getScore()));
+					int left = pList1.getDocId(i), right = pList2.getDocId(j);
+					if(left < right) {
+						ans.add(left, pList1.getScore(i));
 						++i;
-					}else if(cmp > 0) {
-						ans.addPosting(new Posting(right.getDocId(), right.getScore()));
+					}else if(left > right) {
+						ans.add(right, pList2.getScore(j));
 						++j;
 					}else {
-						ans.addPosting(new Posting(left.getDocId(), left.getScore() + right.getScore()));
+						ans.add(left, pList1.getScore(i) + pList2.getScore(j));
 						++i; ++j;
 					}
 				}
 			}
+			if(start != 0) trace("merge", pList1.size(), pList2.size(), ans.size(), start);
 			return ans;
 		}
 	}
@@ -331,6 +617,13 @@ public class QueryParser {
 		this.stmr = new Stemmer();
 	}
 	
+	public String canonicalize(String query) {
+		/**
+		 * canonical form of a query, see Query.canonical
+		 */
+		return parseQuery(query.trim().toLowerCase().replaceAll("\\s+", " ")).canonical();
+	}
+	
 	/**
 	 * Parse the input query, build the operation tree
 	 */
@@ -381,9 +674,10 @@ public class QueryParser {
 		terms.put("strawberri", new PostingList("1:1.4:3,4|2:1.4:8,14|4:2.0:1,2"));
 		terms.put("cake", new PostingList("1:1.4:3,4|2:1.4:8,14|4:2.0:1,2"));
 		PostingListWrapper list = query.evaluate(terms);
-		list.list.sortPostingByScore();
+		PostingList postings = list.list.toPostingList();
+		postings.sortPostingByScore();
 		System.out.println("neg? : " + list.type);
-		for(Posting p : list.list.getPosting())
+		for(Posting p : postings.getPosting())
 			System.out.println(p.getDocId() + " " + p.getScore());
 	}
 }
@@ -0,0 +1,260 @@
+package util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import util.QueryParser.Expr;
+import util.QueryParser.PostingListWrapper;
+import util.QueryParser.Query;
+
+public class QueryPlanner {
+	/**
+	 * QueryPlanner: evaluate queries in an order chosen from the document frequencies of their
+	 * terms, read from the TermDictionary of the index, the posting lists are read through a
+	 * PostingCache only when the evaluation gets to them
+	 * the size of every node is estimated from the df of its words, an upper bound (see
+	 * plan), the operands of a conjunction are evaluated from the positive ones with the
+	 * smallest estimate, each reading the lists of its words, and a conjunction stops as soon as
+	 * a positive operand is empty: it is then empty whatever the other operands, whose lists are
+	 * not read; a conjunction with a positive word missing from the dictionary is known to be
+	 * empty before anything is read
+	 * the result is the one of QueryParser.Query.evaluate on every list: the operands evaluated
+	 * are combined by the query itself, in their place in the query
+	 * the plans are kept by canonical form of the query (QueryParser.Query.canonical), at most
+	 * MAX_PLANS of them, a plan is made for the first query of a canonical form and evaluates
+	 * that query, like the query cache answers it; without a dictionary the df of a term is the
+	 * size of its list, read to make the plan
+	 * Parameters:
+	 * 	dict: term dictionary of the index, null if the index has none
+	 * 	lists: cache the posting lists are read from
+	 * 	plans: plans in access order
+	 */
+	private static final int MAX_PLANS = 1024;
+	
+	private TermDictionary dict;
+	private PostingCache lists;
+	private LinkedHashMap<String, Node> plans = new LinkedHashMap<String, Node>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, Node> eldest) {
+			return size() > MAX_PLANS;
+		}
+	};
+	
+	private static class Node {
+		/**
+		 * Node: plan of a node of the query
+		 * Parameters:
+		 * 	query: the node
+		 * 	key: canonical form of an inner node, the key of the sub-expression cache, null for a
+		 * 	leaf or a node of stop words only
+		 * 	type: type of the result, see QueryParser.PostingListWrapper, it only depends on the
+		 * 	query
+		 * 	estimate: upper bound of the size of the result
+		 * 	empty: the result is known to be an empty positive list
+		 * 	children: plans of the children in evaluation order, order: their index in the query
+		 */
+		private Query query;
+		private String key;
+		private int type;
+		private long estimate;
+		private boolean empty;
+		private Node[] children;
+		private int[] order;
+	}
+	
+	public QueryPlanner(TermDictionary dict, PostingCache lists) {
+		this.dict = dict;
+		this.lists = lists;
+	}
+	
+	private long df(String term) throws IOException {
+		if(dict == null) {
+			ColumnarPostingList list = lists.get(term);
+			return list == null ? 0 : list.size();
+		}
+		TermDictionary.Entry entry = dict.get(term);
+		return entry == null ? 0 : entry.getDf();
+	}
+	
+	private Node plan(Query query) throws IOException {
+		/**
+		 * Output: plan of the query, made once per canonical form
+		 */
+		String key = query.canonical();
+		synchronized(plans) {
+			Node plan = plans.get(key);
+			if(plan != null) return plan;
+		}
+		Node plan = plan(query, new HashMap<String, Long>());
+		synchronized(plans) {
+			plans.put(key, plan);
+		}
+		return plan;
+	}
+	
+	private Node plan(Query query, Map<String, Long> dfs) throws IOException {
+		Node node = new Node();
+		node.query = query;
+		Expr expr = query.expr();
+		if(expr == Expr.WORD || expr == Expr.EXCEPT_WORD) {
+			Long df = dfs.get(query.word());
+			if(df == null) dfs.put(query.word(), df = df(query.word()));
+			node.type = expr == Expr.WORD ? 0 : 1;
+			node.estimate = df;
+			node.empty = expr == Expr.WORD && df == 0;
+			return node;
+		}else if(expr == Expr.STOP_WORD) {
+			node.type = 2;
+			return node;
+		}
+		Query[] children = query.children();
+		node.key = query.canonical();
+		if(node.key.isEmpty()) node.key = null;
+		node.children = new Node[children.length];
+		for(int i = 0; i < children.length; ++i) node.children[i] = plan(children[i], dfs);
+		/**
+		 * the types follow doAnd and doOr: a conjunction is positive with a positive operand,
+		 * negative with negative operands only, a disjunction negative with a negative operand,
+		 * and either is a stop word when all its operands are
+		 * a positive conjunction holds at most its smallest positive operand, a negative one the
+		 * merge of its operands, a positive disjunction the merge of its operands, a negative one
+		 * at most its smallest negative operand
+		 */
+		boolean positive = false, negative = false;
+		long min = Long.MAX_VALUE, sum = 0;
+		for(Node child : node.children) {
+			if(child.type == 2) continue;
+			if(child.type == 0) positive = true;
+			else negative = true;
+		}
+		if(expr == Expr.AND) {
+			node.type = positive ? 0 : negative ? 1 : children.length == 0 ? 0 : 2;
+			for(Node child : node.children) {
+				if(child.type == 0) min = Math.min(min, child.estimate);
+				else if(child.type != 2) sum += child.estimate;
+				// an empty positive operand empties the conjunction
+				if(child.empty) node.empty = true;
+			}
+			node.estimate = positive ? min : sum;
+		}else {
+			int type = negative ? 1 : positive ? 0 : 2;
+			node.type = expr == Expr.NOT_OR ? 1 - type : type;
+			boolean empty = positive && !negative;
+			for(Node child : node.children) {
+				if(child.type == 0) sum += child.estimate;
+				else if(child.type != 2) min = Math.min(min, child.estimate);
+				if(child.type == 0 && !child.empty) empty = false;
+			}
+			node.estimate = negative ? min : sum;
+			// a disjunction of empty positive operands is empty, the negation of it is not
+			node.empty = expr == Expr.OR && empty;
+		}
+		if(node.empty) node.estimate = 0;
+		// the positive operands of a conjunction first, they may empty it, the smallest first
+		node.order = new int[children.length];
+		Integer[] order = new Integer[children.length];
+		for(int i = 0; i < order.length; ++i) order[i] = i;
+		if(expr == Expr.AND) {
+			final Node[] nodes = node.children;
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer i, Integer j) {
+					if((nodes[i].type == 0) != (nodes[j].type == 0)) return nodes[i].type == 0 ? -1 : 1;
+					return Long.compare(nodes[i].estimate, nodes[j].estimate);
+				}
+			});
+		}
+		Node[] sorted = new Node[children.length];
+		for(int i = 0; i < order.length; ++i) {
+			node.order[i] = order[i];
+			sorted[i] = node.children[order[i]];
+		}
+		node.children = sorted;
+		return node;
+	}
+	
+	public PostingListWrapper evaluate(Query query, SubExpressionCache cache) throws IOException {
+		/**
+		 * Output: the result of query.evaluate on the posting lists of its words, see above
+		 */
+		return evaluate(plan(query), new HashMap<String, ColumnarPostingList>(), cache, null);
+	}
+	
+	private PostingListWrapper evaluate(Node node, Map<String, ColumnarPostingList> terms, SubExpressionCache cache,
+			Map<Node, Integer> actual) throws IOException {
+		/**
+		 * Input:
+		 * 	terms: the lists read so far for the query
+		 * 	actual: size of the result of every node evaluated, null when it is not recorded
+		 */
+		PostingListWrapper ans;
+		if(node.empty) ans = new PostingListWrapper(0, new ColumnarPostingList());
+		else if(node.children == null) {
+			String word = node.query.word();
+			if(word != null && !terms.containsKey(word)) {
+				ColumnarPostingList list = lists.get(word);
+				terms.put(word, list == null ? new ColumnarPostingList() : list);
+			}
+			ans = node.query.evaluateColumns(terms);
+		}else {
+			ans = node.key != null && cache != null ? cache.get(node.key) : null;
+			if(ans == null) ans = evaluateChildren(node, terms, cache, actual);
+		}
+		if(actual != null) actual.put(node, ans.list.size());
+		return ans;
+	}
+	
+	private PostingListWrapper evaluateChildren(Node node, Map<String, ColumnarPostingList> terms, SubExpressionCache cache,
+			Map<Node, Integer> actual) throws IOException {
+		PostingListWrapper[] pList = new PostingListWrapper[node.children.length];
+		long inputs = 0;
+		for(int i = 0; i < node.children.length; ++i) {
+			PostingListWrapper result = evaluate(node.children[i], terms, cache, actual);
+			// an empty positive operand is the result of the conjunction
+			if(node.query.expr() == Expr.AND && result.type == 0 && result.list.size() == 0)
+				return new PostingListWrapper(0, new ColumnarPostingList());
+			pList[node.order[i]] = result;
+			inputs += result.list.size();
+		}
+		PostingListWrapper ans = node.query.combine(pList);
+		if(node.key != null && cache != null) cache.offer(node.key, new PostingListWrapper(ans.type, ans.list), inputs);
+		return ans;
+	}
+	
+	public String explain(Query query) throws IOException {
+		/**
+		 * evaluate the query and describe its plan: a line per node in evaluation order, with its
+		 * estimated and actual size, the nodes left out by an empty operand are marked skipped
+		 */
+		Node plan = plan(query);
+		Map<Node, Integer> actual = new IdentityHashMap<Node, Integer>();
+		Map<String, ColumnarPostingList> terms = new HashMap<String, ColumnarPostingList>();
+		evaluate(plan, terms, null, actual);
+		StringBuilder out = new StringBuilder();
+		out.append("plan of \"").append(query.canonical()).append("\", ").append(terms.size()).append(" of ")
+				.append(query.words().size()).append(" lists read\n");
+		explain(plan, 0, actual, out);
+		return out.toString();
+	}
+	
+	private void explain(Node node, int depth, Map<Node, Integer> actual, StringBuilder out) {
+		char[] indent = new char[2 * depth];
+		Arrays.fill(indent, ' ');
+		Expr expr = node.query.expr();
+		String label = expr == Expr.WORD ? node.query.word() : expr == Expr.EXCEPT_WORD ? "not " + node.query.word()
+				: expr == Expr.STOP_WORD ? "stop word" : expr.toString().toLowerCase().replace('_', ' ');
+		out.append(indent).append(label);
+		if(node.children != null && node.key != null) out.append(": ").append(node.key);
+		if(node.type == 1) out.append(" (negative)");
+		out.append(String.format("  estimated %d", node.estimate));
+		Integer size = actual.get(node);
+		out.append(size == null ? "  skipped" : "  actual " + size);
+		if(node.empty) out.append("  empty from df");
+		out.append('\n');
+		if(node.children != null && !node.empty)
+			for(Node child : node.children) explain(child, depth + 1, actual, out);
+	}
+}
@@ -9,24 +9,40 @@ import java.util.List;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableUtils;
 
-import util.PostingList.Posting;
-
 public class SearchResult implements Writable{
 	/**
 	 * SearchResult: result of a query
 	 * Parameters:
 	 * 	count: number of result documents
-	 * 	pages: list of pages, each page contains at most 10 documents
+	 * 	exact: false when only the best pages were evaluated, count is then a lower bound
+	 * 	and written with a trailing inexactMark
+	 * 	pages: list of pages, each page contains at most PAGE_SIZE documents, an exact result may
+	 * 	only hold its first pages, the count tells how many documents there are
+	 * 	continuation: produces the documents after the pages, null when there is none, it is not
+	 * 	serialized
 	 * 	innerSep: separator for documents inside a page
 	 * 	outerSep: separator for pages
 	 */
 	private int count;
+	private boolean exact;
 	private List<List<Integer>> pages;
+	private Continuation continuation;
 	public static String innerSep = ",";
 	public static String outerSep = ";";
+	public static String inexactMark = "+";
+	public static final int PAGE_SIZE = 10;
+	
+	public interface Continuation {
+		/**
+		 * Continuation: rank the documents of a result after the ones already in its pages
+		 * Output: the next n documents in rank order, fewer when the result has no more
+		 */
+		PostingList next(int n);
+	}
 	
 	public SearchResult() {
 		count = 0;
+		exact = true;
 		this.pages = new ArrayList<List<Integer>>();
 	}
 	
@@ -37,12 +53,67 @@ public class SearchResult implements Writable{
 		 * 	postings: a posting list returned from query
 		 */
 		pages.clear();
-		List<Posting> list = postings.getPosting();
-		for(int i = 0; i < list.size(); ++i) {
-			if(i % 10 == 0) pages.add(new ArrayList<Integer>());
-			pages.get(pages.size() - 1).add(Integer.valueOf(list.get(i).getDocId()));
+		continuation = null;
+		addPostings(postings);
+		count = postings.size();
+		exact = true;
+	}
+	
+	private void addPostings(PostingList postings) {
+		for(int i = 0; i < postings.size(); ++i) {
+			if(pages.isEmpty() || pages.get(pages.size() - 1).size() == PAGE_SIZE) pages.add(new ArrayList<Integer>());
+			pages.get(pages.size() - 1).add(postings.get(i).getDocId());
 		}
-		count = list.size();
+	}
+	
+	private int numDocs() {
+		return pages.isEmpty() ? 0 : (pages.size() - 1) * PAGE_SIZE + pages.get(pages.size() - 1).size();
+	}
+	
+	public void setContinuation(Continuation continuation) {
+		this.continuation = continuation;
+	}
+	
+	public boolean hasPage(int page) {
+		/**
+		 * whether the page is in the result, a page after the last one of a complete result counts
+		 * as present, it shows the last page
+		 */
+		return page <= pages.size() || exact && numDocs() >= count;
+	}
+	
+	public boolean extend(int page) {
+		/**
+		 * rank the documents up to the page with the continuation
+		 * Output: whether the page is now in the result
+		 */
+		if(hasPage(page) || continuation == null) return hasPage(page);
+		int wanted = page * PAGE_SIZE - numDocs();
+		PostingList more = continuation.next(wanted);
+		addPostings(more);
+		if(more.size() < wanted) {
+			// the continuation is exhausted, every document is known
+			count = numDocs();
+			exact = true;
+		}else if(!exact) count = Math.max(count, numDocs());
+		if(exact && numDocs() >= count) continuation = null;
+		return hasPage(page);
+	}
+	
+	public int getPageCount() {
+		/**
+		 * number of pages of the result, a lower bound when the count is not exact
+		 */
+		return exact ? (count + PAGE_SIZE - 1) / PAGE_SIZE : pages.size();
+	}
+	
+	public void setCount(int count, boolean exact) {
+		/**
+		 * override the count taken from the posting list, used when the posting list
+		 * only holds the top documents
+		 */
+		this.count = count;
+		this.exact = exact;
 	}
 	
 	public void readFromString(String str) {
@@ -50,12 +121,15 @@ public class SearchResult implements Writable{
 		 * convert the string output from toString() back to SearchResult Object
 		 */
 		pages.clear();
+		continuation = null;
+		exact = true;
 		if(str == null) {
 			count = 0;
 			return;
 		}
 		String[] pages = str.split(outerSep);
-		count = Integer.valueOf(pages[0]);
+		exact = !pages[0].endsWith(inexactMark);
+		count = Integer.valueOf(exact ? pages[0] : pages[0].substring(0, pages[0].length() - inexactMark.length()));
 		for(int i = 1; i < pages.length; ++i) {
 			String page = pages[i];
 			List<Integer> ids = new ArrayList<Integer>();
@@ -72,6 +146,13 @@ public class SearchResult implements Writable{
 		return count;
 	}
 	
+	public boolean isExact() {
+		/**
+		 * Whether the count is exact and all the pages are present
+		 */
+		return exact;
+	}
+	
 	public List<List<Integer>> getResult() {
 		/**
 		 * Get all pages
@@ -96,6 +177,7 @@ public class SearchResult implements Writable{
 		 */
 		StringBuffer sb = new StringBuffer();
 		sb.append(count);
+		if(!exact) sb.append(inexactMark);
 		for(int i = 0; i < pages.size(); ++i) {
 			List<Integer> page = pages.get(i);
 			StringBuffer inner = new StringBuffer();
@@ -108,12 +190,12 @@ public class SearchResult implements Writable{
 		}
 		return sb.toString();
 	}
-
+	
 	@Override
 	public void write(DataOutput out) throws IOException {
 		WritableUtils.writeCompressedString(out, this.toString());
 	}
-
+	
 	@Override
 	public void readFields(DataInput in) throws IOException {
 		String listStr = WritableUtils.readCompressedString(in);
@@ -0,0 +1,122 @@
+package util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+import util.QueryParser.PostingListWrapper;
+
+public class SubExpressionCache {
+	/**
+	 * SubExpressionCache: results of the inner nodes of queries (phrases, or clauses, conjunctions)
+	 * keyed by their canonical form (QueryParser.Query.canonical), so that a clause shared by
+	 * several queries is evaluated once
+	 * a result is admitted when its cost, the total size of the lists it was computed from times
+	 * the number of times its key was asked for, reaches "subExprMinCost" postings, so a rare or
+	 * cheap clause never enters, the admitted results form an LRU map bounded by their estimated
+	 * size ("subExprMaxBytes")
+	 * the frequencies are counted for at most MAX_TRACKED keys, when there are more every count is
+	 * halved and the keys falling to 0 are forgotten
+	 * the cached lists are shared, get returns a new wrapper around them and the callers must not
+	 * modify the lists, the methods may be called from several threads
+	 * Parameters:
+	 * 	results: cached results in access order, with their weight
+	 * 	frequency: number of lookups of each recent key
+	 * 	bytes, maxBytes, minCost: see above
+	 * 	hits, misses, admissions: counters since the cache was created
+	 */
+	private static final int MAX_TRACKED = 1 << 16;
+	
+	private LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>(16, 0.75f, true);
+	private Map<String, Integer> frequency = new HashMap<String, Integer>();
+	private long bytes = 0;
+	private long maxBytes;
+	private long minCost;
+	private long hits = 0;
+	private long misses = 0;
+	private long admissions = 0;
+	
+	private static class Result {
+		private int type;
+		private ColumnarPostingList list;
+		private long weight;
+		
+		Result(int type, ColumnarPostingList list, long weight) {
+			this.type = type;
+			this.list = list;
+			this.weight = weight;
+		}
+	}
+	
+	public SubExpressionCache(Configuration conf) {
+		this.maxBytes = conf.getLong("subExprMaxBytes", 64L << 20);
+		this.minCost = conf.getLong("subExprMinCost", 100000);
+	}
+	
+	public synchronized PostingListWrapper get(String key) {
+		/**
+		 * Output: the cached result of the sub-expression, null if it is not cached
+		 */
+		Integer count = frequency.get(key);
+		frequency.put(key, count == null ? 1 : count + 1);
+		if(frequency.size() > MAX_TRACKED) age();
+		Result result = results.get(key);
+		if(result == null) {
+			++misses;
+			return null;
+		}
+		++hits;
+		return new PostingListWrapper(result.type, result.list);
+	}
+	
+	public synchronized void offer(String key, PostingListWrapper result, long inputs) {
+		/**
+		 * Input:
+		 * 	key: canonical form of the sub-expression
+		 * 	result: its evaluation
+		 * 	inputs: total size of the lists it was computed from
+		 */
+		if(results.containsKey(key)) return;
+		Integer count = frequency.get(key);
+		if(count == null || inputs * count < minCost) return;
+		long weight = result.list.memorySize() + 2 * key.length();
+		if(weight > maxBytes) return;
+		results.put(key, new Result(result.type, result.list, weight));
+		bytes += weight;
+		++admissions;
+		Iterator<Result> it = results.values().iterator();
+		while(bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().weight;
+			it.remove();
+		}
+	}
+	
+	private void age() {
+		Iterator<Map.Entry<String, Integer>> it = frequency.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<String, Integer> entry = it.next();
+			if(entry.getValue() < 2) it.remove();
+			else entry.setValue(entry.getValue() / 2);
+		}
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized int size() {
+		return results.size();
+	}
+	
+	public synchronized String toString() {
+		return String.format("sub-expression cache: %d hits, %d misses, %d admitted, %d results, %d bytes",
+				hits, misses, admissions, results.size(), bytes);
+	}
+}
@@ -0,0 +1,316 @@
+package util;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+public class TermDictionary implements Closeable {
+	/**
+	 * TermDictionary: sorted dictionary of the terms of the inverted index, written once at index
+	 * time and read through a memory map (or a heap copy when the file is not on the local disk)
+	 * each entry holds the document frequency and the max score of the term, and the partition and
+	 * byte offset of its posting list, so a query can seek straight to the list, and the offset of
+	 * its positions in the positions file of the partition (see PositionFiles)
+	 * Binary format: blocks of INTERVAL entries front coded against the previous term (shared
+	 * prefix length, suffix length, suffix bytes, df, max score, partition, offset, positions
+	 * offset), then the start of every block as an int, then the number of terms and INTERVAL as
+	 * ints
+	 * Parameters:
+	 * 	FILE_NAME: name of the dictionary in the index directory
+	 * 	INTERVAL: number of entries per block, a block starts with a full term
+	 * 	buf: content of the dictionary
+	 * 	numTerms, interval, numBlocks, blockTable: trailer of the file
+	 */
+	public static final String FILE_NAME = "_term_dictionary";
+	public static final int INTERVAL = 16;
+	
+	private ByteBuffer buf;
+	private int numTerms;
+	private int interval;
+	private int numBlocks;
+	private int blockTable;
+	
+	public static class Entry {
+		/**
+		 * Entry: dictionary information of one term
+		 */
+		private String term;
+		private int df;
+		private float maxScore;
+		private int partition;
+		private long offset;
+		private long positionsOffset;
+		
+		public Entry(String term, int df, float maxScore, int partition, long offset, long positionsOffset) {
+			this.term = term;
+			this.df = df;
+			this.maxScore = maxScore;
+			this.partition = partition;
+			this.offset = offset;
+			this.positionsOffset = positionsOffset;
+		}
+		
+		public String getTerm() {
+			return term;
+		}
+		
+		public int getDf() {
+			return df;
+		}
+		
+		public float getMaxScore() {
+			return maxScore;
+		}
+		
+		public int getPartition() {
+			return partition;
+		}
+		
+		public long getOffset() {
+			return offset;
+		}
+		
+		public long getPositionsOffset() {
+			/**
+			 * offset of the positions of the list in the positions file, -1 if the list holds them
+			 */
+			return positionsOffset;
+		}
+		
+		public Path getFile(Path indexDir) {
+			/**
+			 * data file of the MapFile of the partition, the offset is a position in this file
+			 */
+			return new Path(new Path(indexDir, String.format("part-r-%05d", partition)), MapFile.DATA_FILE_NAME);
+		}
+		
+		public Path getPositionsFile(Path indexDir) {
+			return new Path(getFile(indexDir).getParent(), PositionFiles.FILE_NAME);
+		}
+		
+		public String toString() {
+			return term + ":" + df + ":" + maxScore + ":" + partition + ":" + offset + ":" + positionsOffset;
+		}
+	}
+	
+	public static class Writer implements Closeable {
+		/**
+		 * Writer: append entries in increasing term order
+		 */
+		private DataOutputStream out;
+		private List<Integer> blockStarts = new ArrayList<Integer>();
+		private DataOutputBuffer entry = new DataOutputBuffer();
+		private byte[] last = new byte[0];
+		private int lastLength = 0;
+		private int numTerms = 0;
+		private int length = 0;
+		
+		public Writer(DataOutputStream out) {
+			this.out = out;
+		}
+		
+		public void append(Text term, int df, float maxScore, int partition, long offset, long positionsOffset) throws IOException {
+			byte[] bytes = term.getBytes();
+			int len = term.getLength();
+			if(numTerms > 0 && WritableComparator.compareBytes(last, 0, lastLength, bytes, 0, len) >= 0)
+				throw new IOException("terms are not appended in order: " + term);
+			int prefix = 0;
+			if(numTerms % INTERVAL == 0) blockStarts.add(length);
+			else while(prefix < Math.min(len, lastLength) && bytes[prefix] == last[prefix]) ++prefix;
+			entry.reset();
+			WritableUtils.writeVInt(entry, prefix);
+			WritableUtils.writeVInt(entry, len - prefix);
+			entry.write(bytes, prefix, len - prefix);
+			WritableUtils.writeVInt(entry, df);
+			entry.writeFloat(maxScore);
+			WritableUtils.writeVInt(entry, partition);
+			WritableUtils.writeVLong(entry, offset);
+			WritableUtils.writeVLong(entry, positionsOffset);
+			out.write(entry.getData(), 0, entry.getLength());
+			length += entry.getLength();
+			if(last.length < len) last = new byte[Math.max(len, last.length * 2)];
+			System.arraycopy(bytes, 0, last, 0, len);
+			lastLength = len;
+			++numTerms;
+		}
+		
+		public void close() throws IOException {
+			for(int start : blockStarts) out.writeInt(start);
+			out.writeInt(numTerms);
+			out.writeInt(INTERVAL);
+			out.close();
+		}
+	}
+	
+	private TermDictionary(ByteBuffer buf) {
+		this.buf = buf;
+		numTerms = buf.getInt(buf.limit() - 8);
+		interval = buf.getInt(buf.limit() - 4);
+		numBlocks = (numTerms + interval - 1) / interval;
+		blockTable = buf.limit() - 8 - 4 * numBlocks;
+	}
+	
+	public static TermDictionary open(Configuration conf, Path path) throws IOException {
+		/**
+		 * map the dictionary into memory when it is on the local file system, read it otherwise
+		 */
+		FileSystem fs = path.getFileSystem(conf);
+		if(fs instanceof LocalFileSystem) {
+			File file = ((LocalFileSystem) fs).pathToFile(path);
+			try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+				return new TermDictionary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			}
+		}
+		byte[] bytes = new byte[(int) fs.getFileStatus(path).getLen()];
+		try(FSDataInputStream in = fs.open(path)) {
+			in.readFully(bytes);
+		}
+		return new TermDictionary(ByteBuffer.wrap(bytes));
+	}
+	
+	public static void build(Configuration conf, Path indexDir, List<Path> parts) throws IOException {
+		/**
+		 * merge the per partition entries written with the index into the dictionary of indexDir
+		 * Input:
+		 * 	parts: SequenceFiles of (term, entry) in partition order, see DictionaryValue
+		 */
+		FileSystem fs = indexDir.getFileSystem(conf);
+		try(Writer writer = new Writer(fs.create(new Path(indexDir, FILE_NAME), true))) {
+			Text term = new Text();
+			DictionaryValue value = new DictionaryValue();
+			for(Path part : parts) {
+				try(SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(part))) {
+					while(reader.next(term, value))
+						writer.append(term, value.df, value.maxScore, value.partition, value.offset, value.positionsOffset);
+				}
+			}
+		}
+	}
+	
+	public static class DictionaryValue implements Writable {
+		/**
+		 * DictionaryValue: dictionary entry of a term without the term, as written by the index job
+		 */
+		public int df;
+		public float maxScore;
+		public int partition;
+		public long offset;
+		public long positionsOffset = -1;
+		
+		public void readFields(DataInput in) throws IOException {
+			df = WritableUtils.readVInt(in);
+			maxScore = in.readFloat();
+			partition = WritableUtils.readVInt(in);
+			offset = WritableUtils.readVLong(in);
+			positionsOffset = WritableUtils.readVLong(in);
+		}
+		
+		public void write(DataOutput out) throws IOException {
+			WritableUtils.writeVInt(out, df);
+			out.writeFloat(maxScore);
+			WritableUtils.writeVInt(out, partition);
+			WritableUtils.writeVLong(out, offset);
+			WritableUtils.writeVLong(out, positionsOffset);
+		}
+	}
+	
+	public int size() {
+		return numTerms;
+	}
+	
+	public Entry get(String term) {
+		/**
+		 * binary search the block whose first term is the last one not greater than term, then
+		 * decode the block up to the term
+		 * Output: entry of the term, null if it is not in the dictionary
+		 */
+		byte[] key = new Text(term).copyBytes();
+		ByteBuffer in = buf.duplicate();
+		byte[] current = new byte[64];
+		int low = 0, high = numBlocks - 1, block = -1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			in.position(in.getInt(blockTable + 4 * mid));
+			readVLong(in);
+			int len = (int) readVLong(in);
+			if(current.length < len) current = new byte[len];
+			in.get(current, 0, len);
+			int cmp = WritableComparator.compareBytes(current, 0, len, key, 0, key.length);
+			if(cmp == 0) {
+				block = mid;
+				break;
+			}
+			if(cmp < 0) {
+				block = mid;
+				low = mid + 1;
+			}else high = mid - 1;
+		}
+		if(block < 0) return null;
+		in.position(in.getInt(blockTable + 4 * block));
+		int length = 0;
+		for(int i = block * interval; i < Math.min(numTerms, (block + 1) * interval); ++i) {
+			int prefix = (int) readVLong(in);
+			int suffix = (int) readVLong(in);
+			length = prefix + suffix;
+			if(current.length < length) current = Arrays.copyOf(current, Math.max(length, current.length * 2));
+			in.get(current, prefix, suffix);
+			int df = (int) readVLong(in);
+			float maxScore = in.getFloat();
+			int partition = (int) readVLong(in);
+			long offset = readVLong(in);
+			long positionsOffset = readVLong(in);
+			int cmp = WritableComparator.compareBytes(current, 0, length, key, 0, key.length);
+			if(cmp == 0) return new Entry(term, df, maxScore, partition, offset, positionsOffset);
+			if(cmp > 0) break;
+		}
+		return null;
+	}
+	
+	public static boolean readPostings(SequenceFile.Reader reader, Entry entry, Text term, PostingList postings) throws IOException {
+		/**
+		 * read the posting list of an entry from the index file of its partition
+		 * Output: false if the record at the offset is not the term, the index and the dictionary
+		 * do not match
+		 */
+		reader.seek(entry.getOffset());
+		return reader.next(term, postings) && term.toString().equals(entry.getTerm());
+	}
+	
+	private static long readVLong(ByteBuffer in) {
+		/**
+		 * same encoding as WritableUtils.readVLong
+		 */
+		byte first = in.get();
+		int len = WritableUtils.decodeVIntSize(first);
+		if(len == 1) return first;
+		long value = 0;
+		for(int i = 0; i < len - 1; ++i) value = (value << 8) | (in.get() & 0xFF);
+		return WritableUtils.isNegativeVInt(first) ? ~value : value;
+	}
+	
+	public void close() {
+		buf = null;
+	}
+}
@@ -0,0 +1,121 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+public class TermDocWritable implements WritableComparable<TermDocWritable> {
+	/**
+	 * TermDocWritable: composite (term, docId) key of the inverted index job
+	 * serialized as a Text term followed by a fixed width int docId, so that both parts
+	 * can be compared on the serialized bytes
+	 * Parameters:
+	 * 	term: stemmed term
+	 * 	docId: document id
+	 */
+	private Text term;
+	private int docId;
+	
+	public TermDocWritable() {
+		this.term = new Text();
+	}
+	
+	public TermDocWritable(String term, int docId) {
+		this.term = new Text(term);
+		this.docId = docId;
+	}
+	
+	public Text getTerm() {
+		return term;
+	}
+	
+	public int getDocId() {
+		return docId;
+	}
+	
+	public void set(String term, int docId) {
+		this.term.set(term);
+		this.docId = docId;
+	}
+	
+	public void readFields(DataInput in) throws IOException {
+		term.readFields(in);
+		docId = in.readInt();
+	}
+	
+	public void write(DataOutput out) throws IOException {
+		term.write(out);
+		out.writeInt(docId);
+	}
+	
+	public int compareTo(TermDocWritable other) {
+		int cmp = term.compareTo(other.term);
+		return cmp != 0 ? cmp : Integer.compare(docId, other.docId);
+	}
+	
+	public int hashCode() {
+		return term.hashCode() * 163 + docId;
+	}
+	
+	public boolean equals(Object o) {
+		if(!(o instanceof TermDocWritable)) return false;
+		TermDocWritable other = (TermDocWritable) o;
+		return docId == other.docId && term.equals(other.term);
+	}
+	
+	public String toString() {
+		return term + ":" + docId;
+	}
+	
+	public static class Comparator extends WritableComparator {
+		/**
+		 * Comparator: sort by term bytes, then by docId, without deserializing the keys
+		 */
+		public Comparator() {
+			super(TermDocWritable.class);
+		}
+		
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			try {
+				int n1 = WritableUtils.decodeVIntSize(b1[s1]), n2 = WritableUtils.decodeVIntSize(b2[s2]);
+				int len1 = readVInt(b1, s1), len2 = readVInt(b2, s2);
+				int cmp = compareBytes(b1, s1 + n1, len1, b2, s2 + n2, len2);
+				if(cmp != 0) return cmp;
+				return Integer.compare(readInt(b1, s1 + n1 + len1), readInt(b2, s2 + n2 + len2));
+			}catch(IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+	
+	public static class TermComparator extends WritableComparator {
+		/**
+		 * TermComparator: grouping comparator, keys with the same term go to the same reduce call
+		 */
+		public TermComparator() {
+			super(TermDocWritable.class);
+		}
+		
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			try {
+				int n1 = WritableUtils.decodeVIntSize(b1[s1]), n2 = WritableUtils.decodeVIntSize(b2[s2]);
+				return compareBytes(b1, s1 + n1, readVInt(b1, s1), b2, s2 + n2, readVInt(b2, s2));
+			}catch(IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+		
+		public int compare(WritableComparable a, WritableComparable b) {
+			return ((TermDocWritable) a).term.compareTo(((TermDocWritable) b).term);
+		}
+	}
+	
+	static {
+		WritableComparator.define(TermDocWritable.class, new Comparator());
+	}
+}
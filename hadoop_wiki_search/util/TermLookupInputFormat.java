@@ -0,0 +1,219 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+public class TermLookupInputFormat extends InputFormat<Text, PostingList> {
+	/**
+	 * TermLookupInputFormat: read only the posting lists of the given terms from an inverted index
+	 * there is one split per term, with a TermDictionary the split holds the partition and the
+	 * offset of the posting list recorded in the dictionary, terms missing from it get no split,
+	 * without one the partition is found with the boundaries of the index partition file (the
+	 * same search as TermPartitioner)
+	 * the record reader of a split reads the single record of its term, at the offset or with
+	 * MapFile.Reader.get, a record at the offset holding another term is an error, the positions
+	 * the index stores apart are read from the positions file when the list is written
+	 * Parameters:
+	 * 	INDEX_DIR, PARTITION_FILE, TERMS: configuration keys of the inverted index directory,
+	 * 	its partition file and the terms to read
+	 */
+	public static final String INDEX_DIR = "termLookupIndex";
+	public static final String PARTITION_FILE = "termLookupPartitionFile";
+	public static final String TERMS = "termLookupTerms";
+	
+	public static void setIndex(Job job, Path indexDir, Path partitionFile) {
+		job.getConfiguration().set(INDEX_DIR, indexDir.toString());
+		job.getConfiguration().set(PARTITION_FILE, partitionFile.toString());
+	}
+	
+	public static void setTerms(Job job, Collection<String> terms) {
+		job.getConfiguration().setStrings(TERMS, terms.toArray(new String[terms.size()]));
+	}
+	
+	public static class TermSplit extends InputSplit implements Writable {
+		/**
+		 * TermSplit: a term, the MapFile of its partition and the offset of its posting list in
+		 * the data file and of its positions in the positions file, -1 when unknown
+		 * the length of the split is the document frequency of the term (0 when unknown), the
+		 * framework only uses it to start the largest splits first
+		 */
+		private Text term = new Text();
+		private Text file = new Text();
+		private long offset;
+		private long positionsOffset;
+		private long length;
+		private String[] hosts = new String[0];
+		
+		public TermSplit() {
+		
+		}
+		
+		public TermSplit(String term, Path file, long offset, long positionsOffset, long length, String[] hosts) {
+			this.term.set(term);
+			this.file.set(file.toString());
+			this.offset = offset;
+			this.positionsOffset = positionsOffset;
+			this.length = length;
+			this.hosts = hosts;
+		}
+		
+		public String getTerm() {
+			return term.toString();
+		}
+		
+		public Path getFile() {
+			return new Path(file.toString());
+		}
+		
+		public long getOffset() {
+			return offset;
+		}
+		
+		public long getPositionsOffset() {
+			return positionsOffset;
+		}
+		
+		public long getLength() {
+			return length;
+		}
+		
+		public String[] getLocations() {
+			return hosts;
+		}
+		
+		public void readFields(DataInput in) throws IOException {
+			term.readFields(in);
+			file.readFields(in);
+			offset = in.readLong();
+			positionsOffset = in.readLong();
+			length = in.readLong();
+		}
+		
+		public void write(DataOutput out) throws IOException {
+			term.write(out);
+			file.write(out);
+			out.writeLong(offset);
+			out.writeLong(positionsOffset);
+			out.writeLong(length);
+		}
+		
+		public String toString() {
+			return term + "@" + file + ":" + offset;
+		}
+	}
+	
+	public List<InputSplit> getSplits(JobContext context) throws IOException {
+		Configuration conf = context.getConfiguration();
+		Path indexDir = new Path(conf.get(INDEX_DIR));
+		FileSystem fs = indexDir.getFileSystem(conf);
+		Path dictPath = new Path(indexDir, TermDictionary.FILE_NAME);
+		TermDictionary dict = fs.exists(dictPath) ? TermDictionary.open(conf, dictPath) : null;
+		// boundaries of the partitions, only needed without a dictionary, a single partition without the file
+		List<String> boundaries = new ArrayList<String>();
+		Path partitionFile = new Path(conf.get(PARTITION_FILE));
+		if(dict == null && fs.exists(partitionFile)) boundaries = TermPartitioner.readPartitionFile(conf, partitionFile);
+		
+		List<InputSplit> splits = new ArrayList<InputSplit>();
+		try {
+			for(String term : new LinkedHashSet<String>(conf.getStringCollection(TERMS))) {
+				if(dict == null) {
+					int partition = 0;
+					while(partition < boundaries.size() && term.compareTo(boundaries.get(partition)) >= 0) ++partition;
+					Path file = new Path(indexDir, String.format("part-r-%05d", partition));
+					splits.add(new TermSplit(term, file, -1, -1, 0, new String[0]));
+					continue;
+				}
+				TermDictionary.Entry entry = dict.get(term);
+				if(entry == null) continue;
+				// the offset is only valid in the partition the dictionary recorded
+				Path data = entry.getFile(indexDir);
+				// schedule the map next to the block holding the posting list
+				FileStatus status = fs.getFileStatus(data);
+				BlockLocation[] blocks = fs.getFileBlockLocations(status, entry.getOffset(), 1);
+				String[] hosts = blocks.length > 0 ? blocks[0].getHosts() : new String[0];
+				splits.add(new TermSplit(term, data.getParent(), entry.getOffset(), entry.getPositionsOffset(), entry.getDf(), hosts));
+			}
+		}finally {
+			if(dict != null) dict.close();
+		}
+		return splits;
+	}
+	
+	public RecordReader<Text, PostingList> createRecordReader(InputSplit split, TaskAttemptContext context) {
+		return new TermRecordReader();
+	}
+	
+	public static class TermRecordReader extends RecordReader<Text, PostingList> {
+		/**
+		 * TermRecordReader: read the posting list of the term of a TermSplit, at most one record
+		 */
+		private TermSplit split;
+		private Configuration conf;
+		private Text key = new Text();
+		private PostingList value = new PostingList();
+		private PositionFiles positions;
+		private boolean read = false;
+		
+		public void initialize(InputSplit split, TaskAttemptContext context) {
+			this.split = (TermSplit) split;
+			this.conf = context.getConfiguration();
+			this.positions = new PositionFiles(conf);
+		}
+		
+		public boolean nextKeyValue() throws IOException {
+			if(read) return false;
+			read = true;
+			if(split.getOffset() >= 0) {
+				Path data = new Path(split.getFile(), MapFile.DATA_FILE_NAME);
+				try(SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(data))) {
+					reader.seek(split.getOffset());
+					if(!reader.next(key, value) || !key.toString().equals(split.getTerm()))
+						throw new IOException("term dictionary does not match " + data + " for " + split);
+					positions.attach(value, new Path(split.getFile(), PositionFiles.FILE_NAME), split.getPositionsOffset());
+					return true;
+				}
+			}
+			key.set(split.getTerm());
+			try(MapFile.Reader reader = new MapFile.Reader(split.getFile(), conf)) {
+				return reader.get(key, value) != null;
+			}
+		}
+		
+		public Text getCurrentKey() {
+			return key;
+		}
+		
+		public PostingList getCurrentValue() {
+			return value;
+		}
+		
+		public float getProgress() {
+			return read ? 1 : 0;
+		}
+		
+		public void close() throws IOException {
+			positions.close();
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+public class TermPartitioner<V> extends Partitioner<TermDocWritable, V> implements Configurable {
+	/**
+	 * TermPartitioner: total order partitioner on the term of a (term, docId) key
+	 * all the documents of a term go to the same reducer, and partition i only holds terms
+	 * smaller than boundary i, so the output files are globally sorted by term
+	 * Parameters:
+	 * 	PARTITION_FILE: configuration key of the partition file, a SequenceFile of sorted Text boundaries
+	 * 	boundaries: the numPartitions - 1 boundary terms
+	 */
+	public static final String PARTITION_FILE = "termPartitionFile";
+	
+	private Configuration conf;
+	private Text[] boundaries;
+	
+	public static void setPartitionFile(Configuration conf, Path path) {
+		conf.set(PARTITION_FILE, path.toString());
+	}
+	
+	public static List<String> readPartitionFile(Configuration conf, Path path) throws IOException {
+		/**
+		 * read the boundary terms from a partition file
+		 */
+		List<String> terms = new ArrayList<String>();
+		try(SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path))) {
+			Text term = new Text();
+			while(reader.next(term)) terms.add(term.toString());
+		}
+		return terms;
+	}
+	
+	public void setConf(Configuration conf) {
+		this.conf = conf;
+		String path = conf.get(PARTITION_FILE);
+		List<String> terms = new ArrayList<String>();
+		try {
+			if(path != null) terms = readPartitionFile(conf, new Path(path));
+		}catch(IOException e) {
+			throw new IllegalArgumentException("cannot read partition file " + path, e);
+		}
+		boundaries = new Text[terms.size()];
+		for(int i = 0; i < boundaries.length; ++i) boundaries[i] = new Text(terms.get(i));
+	}
+	
+	public Configuration getConf() {
+		return conf;
+	}
+	
+	public int getPartition(TermDocWritable key, V value, int numPartitions) {
+		/**
+		 * binary search the first boundary greater than the term
+		 */
+		Text term = key.getTerm();
+		int low = 0, high = Math.min(boundaries.length, numPartitions - 1);
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(term.compareTo(boundaries[mid]) < 0) high = mid;
+			else low = mid + 1;
+		}
+		return low;
+	}
+}
@@ -0,0 +1,232 @@
+package util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import util.PostingList.Posting;
+
+public class TopKEvaluator {
+	/**
+	 * TopKEvaluator: find the k best documents of a disjunction (A or B or ...) whose score is
+	 * the sum of the term scores, without materializing the union of the posting lists.
+	 * Uses WAND: documents whose summed upper bound cannot beat the current k-th score are
+	 * skipped, first with the max score of each list, then with the max score of each block.
+	 * Disjunction and Selection produce the pages after the first k documents on demand, as the
+	 * continuation of a SearchResult, Merge combines the continuations of disjoint results.
+	 */
+	
+	private static class Cursor {
+		ColumnarPostingList list;
+		int pos;
+		float maxScore;
+		
+		Cursor(ColumnarPostingList list) {
+			this.list = list;
+			this.pos = 0;
+			this.maxScore = list.getMaxScore();
+		}
+		
+		int doc() {
+			return pos < list.size() ? list.getDocId(pos) : Integer.MAX_VALUE;
+		}
+		
+		void advance(int docId) {
+			pos = list.advance(pos, docId);
+		}
+		
+		float blockMaxScore(int docId) {
+			/**
+			 * max score of the block in which docId would be found, 0 if the list ends before it
+			 */
+			int b = pos / PostingList.BLOCK_SIZE;
+			while(b < list.numBlocks() && list.getBlockLastDocId(b) < docId) ++b;
+			return b < list.numBlocks() ? list.getBlockMaxScore(b) : 0;
+		}
+		
+		int blockLastDocId(int docId) {
+			int b = pos / PostingList.BLOCK_SIZE;
+			while(b < list.numBlocks() && list.getBlockLastDocId(b) < docId) ++b;
+			return b < list.numBlocks() ? list.getBlockLastDocId(b) : Integer.MAX_VALUE - 1;
+		}
+	}
+	
+	private static final Comparator<Cursor> BY_DOC = new Comparator<Cursor>() {
+		public int compare(Cursor c1, Cursor c2) {
+			return Integer.compare(c1.doc(), c2.doc());
+		}
+	};
+	
+	/**
+	 * order of the heap: the worst result first, a higher docId loses a tie like in sortPostingByScore
+	 */
+	private static final Comparator<Posting> WORST_FIRST = new Comparator<Posting>() {
+		public int compare(Posting p1, Posting p2) {
+			int cmp = Double.compare(p1.getScore(), p2.getScore());
+			return cmp != 0 ? cmp : Integer.compare(p2.getDocId(), p1.getDocId());
+		}
+	};
+	
+	public static PostingList topK(List<ColumnarPostingList> lists, int k) {
+		/**
+		 * Input:
+		 * 	lists: posting lists of the terms, sorted by docId
+		 * 	k: number of documents to return
+		 *
+		 * Output: the k best documents sorted by descending score, without positions
+		 */
+		List<Cursor> active = new ArrayList<Cursor>();
+		for(ColumnarPostingList list : lists) if(list.size() > 0) active.add(new Cursor(list));
+		Cursor[] cursors = active.toArray(new Cursor[active.size()]);
+		PriorityQueue<Posting> heap = new PriorityQueue<Posting>(Math.max(1, k), WORST_FIRST);
+		int n = cursors.length;
+		while(n > 0 && k > 0) {
+			Arrays.sort(cursors, 0, n, BY_DOC);
+			while(n > 0 && cursors[n - 1].doc() == Integer.MAX_VALUE) --n;
+			if(n == 0) break;
+			double threshold = heap.size() < k ? Double.NEGATIVE_INFINITY : heap.peek().getScore();
+			// find the pivot, the first cursor at which the summed upper bounds may beat the threshold
+			double bound = 0;
+			int p = 0;
+			for(; p < n; ++p) {
+				bound += cursors[p].maxScore;
+				if(bound > threshold) break;
+			}
+			if(p == n) break;
+			int pivotDoc = cursors[p].doc();
+			// cursors behind the pivot on the same document take part in its score
+			while(p + 1 < n && cursors[p + 1].doc() == pivotDoc) ++p;
+			// the blocks around the pivot give a tighter bound, skip them all if they cannot compete
+			double blockBound = 0;
+			for(int i = 0; i <= p; ++i) blockBound += cursors[i].blockMaxScore(pivotDoc);
+			if(blockBound <= threshold) {
+				int next = p + 1 < n ? cursors[p + 1].doc() : Integer.MAX_VALUE;
+				for(int i = 0; i <= p; ++i) next = Math.min(next, cursors[i].blockLastDocId(pivotDoc) + 1);
+				for(int i = 0; i <= p; ++i) cursors[i].advance(next);
+				continue;
+			}
+			if(cursors[0].doc() == pivotDoc) {
+				// every cursor before the pivot is on the pivot document, score it
+				double score = 0;
+				for(int i = 0; i < n && cursors[i].doc() == pivotDoc; ++i) {
+					score += cursors[i].list.getScore(cursors[i].pos);
+					++cursors[i].pos;
+				}
+				if(heap.size() < k) heap.add(new Posting(pivotDoc, score));
+				else if(score > threshold) {
+					heap.poll();
+					heap.add(new Posting(pivotDoc, score));
+				}
+			}else {
+				for(int i = 0; i < p; ++i) cursors[i].advance(pivotDoc);
+			}
+		}
+		List<Posting> top = new ArrayList<Posting>(heap);
+		Collections.sort(top, Collections.reverseOrder(WORST_FIRST));
+		return new PostingList(top);
+	}
+	
+	public static class Disjunction implements SearchResult.Continuation {
+		/**
+		 * Disjunction: continuation of a top-k disjunction, the next documents are found by running
+		 * topK again for the documents ranked so far plus the requested ones, the ranking is a
+		 * total order (ties go to the lower docId) so the first documents do not change
+		 * Parameters:
+		 * 	lists: posting lists of the terms, shared, never modified
+		 * 	ranked: number of documents already returned
+		 */
+		private List<ColumnarPostingList> lists;
+		private int ranked;
+		
+		public Disjunction(List<ColumnarPostingList> lists, int ranked) {
+			this.lists = lists;
+			this.ranked = ranked;
+		}
+		
+		public PostingList next(int n) {
+			PostingList top = topK(lists, ranked + n);
+			int from = Math.min(ranked, top.size());
+			List<Posting> more = new ArrayList<Posting>(top.getPosting().subList(from, top.size()));
+			ranked += more.size();
+			return new PostingList(more);
+		}
+	}
+	
+	public static class Selection implements SearchResult.Continuation {
+		/**
+		 * Selection: rank an evaluated posting list a window at a time instead of sorting it, each
+		 * window is selected with a heap of its size among the postings not ranked yet, O(n log k)
+		 * per window, in the order of PostingList.sortPostingByScore
+		 * Parameters:
+		 * 	rest: postings not ranked yet, the list given to the constructor is taken over
+		 */
+		private List<Posting> rest;
+		
+		public Selection(PostingList list) {
+			this.rest = list.getPosting();
+		}
+		
+		public PostingList next(int n) {
+			if(n <= 0 || rest.isEmpty()) return new PostingList();
+			PriorityQueue<Posting> heap = new PriorityQueue<Posting>(Math.min(n, rest.size()), WORST_FIRST);
+			for(Posting p : rest) {
+				if(heap.size() < n) heap.add(p);
+				else if(WORST_FIRST.compare(p, heap.peek()) > 0) {
+					heap.poll();
+					heap.add(p);
+				}
+			}
+			// the order is total, the postings left are exactly the ones ranked below the window
+			Posting worst = heap.peek();
+			List<Posting> left = new ArrayList<Posting>(Math.max(0, rest.size() - heap.size()));
+			for(Posting p : rest) if(WORST_FIRST.compare(p, worst) < 0) left.add(p);
+			rest = left;
+			List<Posting> top = new ArrayList<Posting>(heap);
+			Collections.sort(top, Collections.reverseOrder(WORST_FIRST));
+			return new PostingList(top);
+		}
+	}
+	
+	public static class Merge implements SearchResult.Continuation {
+		/**
+		 * Merge: rank the union of results holding different documents, each ranked by its own
+		 * continuation in the order of Selection, the next n documents of the union are among the
+		 * next n of every result
+		 * Parameters:
+		 * 	parts: continuations of the results, null for a result ranked entirely
+		 * 	pending: documents ranked by each result and not returned yet
+		 */
+		private List<SearchResult.Continuation> parts;
+		private List<ArrayDeque<Posting>> pending = new ArrayList<ArrayDeque<Posting>>();
+		
+		public Merge(List<PostingList> ranked, List<SearchResult.Continuation> parts) {
+			/**
+			 * Input:
+			 * 	ranked: the first documents of every result, already ranked
+			 * 	parts: continuations ranking the documents after them
+			 */
+			this.parts = parts;
+			for(PostingList list : ranked) pending.add(new ArrayDeque<Posting>(list.getPosting()));
+		}
+		
+		public PostingList next(int n) {
+			for(int i = 0; i < parts.size(); ++i) {
+				ArrayDeque<Posting> queue = pending.get(i);
+				if(parts.get(i) != null && queue.size() < n) queue.addAll(parts.get(i).next(n - queue.size()).getPosting());
+			}
+			List<Posting> top = new ArrayList<Posting>();
+			while(top.size() < n) {
+				ArrayDeque<Posting> best = null;
+				for(ArrayDeque<Posting> queue : pending)
+					if(!queue.isEmpty() && (best == null || WORST_FIRST.compare(queue.peek(), best.peek()) > 0)) best = queue;
+				if(best == null) break;
+				top.add(best.poll());
+			}
+			return new PostingList(top);
+		}
+	}
+}